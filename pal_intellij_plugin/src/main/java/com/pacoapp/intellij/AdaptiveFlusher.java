@@ -0,0 +1,164 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Flushes pending events when a batch reaches {@code maxBatchEvents} events or {@code maxBatchBytes}
+ * bytes, or when its oldest event is {@code maxLatencyMs} old, whichever comes first. This bounds
+ * both the delay of every event and the size of every frame.
+ *
+ * While events are pending the flusher wakes every {@code collectIntervalMs} to collect newly
+ * published ones; with nothing pending it sleeps until {@link #onEventPublished} is called. A flush
+ * that sends nothing, e.g. because the PAL Event Server is unreachable, is retried after
+ * {@code retryIntervalMs}.
+ */
+public class AdaptiveFlusher {
+  public static final Logger log = Logger.getLogger(AdaptiveFlusher.class.getName());
+
+  public interface Source {
+    /** Moves published events into the pending batch. */
+    void collect();
+
+    /** Whether events were published that {@link #collect} hasn't moved yet. */
+    boolean hasUncollected();
+
+    int pendingEvents();
+
+    long pendingBytes();
+
+    /** The time of the oldest pending event, or {@link Long#MAX_VALUE} if there is none. */
+    long oldestPendingMillis();
+
+    /** Sends the pending events; returns false if none could be sent. */
+    boolean flush();
+  }
+
+  private final Source source;
+  private final int maxBatchEvents;
+  private final long maxBatchBytes;
+  private final long maxLatencyMs;
+  private final long collectIntervalMs;
+  private final long retryIntervalMs;
+  private final Thread thread;
+  private volatile boolean idle;
+  private volatile boolean closed;
+  // Only touched by the flusher thread
+  private long nextAttemptMillis;
+
+  public AdaptiveFlusher(Source source, int maxBatchEvents, long maxBatchBytes, long maxLatencyMs,
+                         long collectIntervalMs, long retryIntervalMs) {
+    this.source = source;
+    this.maxBatchEvents = maxBatchEvents;
+    this.maxBatchBytes = maxBatchBytes;
+    this.maxLatencyMs = maxLatencyMs;
+    this.collectIntervalMs = collectIntervalMs;
+    this.retryIntervalMs = retryIntervalMs;
+    thread = new Thread(this::run, "PAL event flusher");
+    thread.setDaemon(true);
+  }
+
+  public int getMaxBatchEvents() {
+    return maxBatchEvents;
+  }
+
+  public long getMaxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  public long getMaxLatencyMs() {
+    return maxLatencyMs;
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  /**
+   * Called after every published event. Only wakes the flusher if it is idle, so it costs a volatile
+   * read otherwise.
+   */
+  public void onEventPublished() {
+    if (idle) {
+      idle = false;
+      LockSupport.unpark(thread);
+    }
+  }
+
+  public void close() {
+    closed = true;
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * Waits up to {@code timeoutMs} for a flush in progress to finish after {@link #close}. Returns false
+   * if it is still running.
+   */
+  public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+    thread.join(Math.max(1, timeoutMs));
+    return !thread.isAlive();
+  }
+
+  private void run() {
+    while (!closed) {
+      try {
+        source.collect();
+        if (source.pendingEvents() == 0) {
+          waitForEvents();
+          continue;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (now >= nextAttemptMillis && isDue(now)) {
+          if (!source.flush()) {
+            nextAttemptMillis = now + retryIntervalMs;
+          }
+          continue;
+        }
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.min(collectIntervalMs, delayMs(now))));
+      } catch (RuntimeException e) {
+        log.warning("Exception flushing events: " + e);
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(retryIntervalMs));
+      }
+    }
+  }
+
+  private void waitForEvents() {
+    idle = true;
+    // Publishers claim a slot before they check idle, so either they see it set or this sees their slot
+    if (source.hasUncollected()) {
+      idle = false;
+      LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(collectIntervalMs));
+      return;
+    }
+    LockSupport.park(this);
+    idle = false;
+  }
+
+  private boolean isDue(long now) {
+    return source.pendingEvents() >= maxBatchEvents || source.pendingBytes() >= maxBatchBytes
+        || delayMs(now) <= 0;
+  }
+
+  private long delayMs(long now) {
+    final long oldest = source.oldestPendingMillis();
+    final long delay = oldest == Long.MAX_VALUE ? maxLatencyMs : oldest + maxLatencyMs - now;
+    return Math.max(Math.max(delay, nextAttemptMillis - now), 0);
+  }
+}
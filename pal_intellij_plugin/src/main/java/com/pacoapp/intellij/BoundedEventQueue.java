@@ -0,0 +1,325 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import com.pacoapp.paco.shared.model2.Output;
+import com.pacoapp.paco.shared.model2.PacoEvent;
+import com.pacoapp.paco.shared.model2.PacoEventUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Events waiting to be sent, bounded both in number and in (estimated) bytes so that a PAL Event
+ * Server that is down for hours can't fill the IDE heap. What happens to an event that doesn't fit
+ * is chosen by the {@link OverflowPolicy}. Dropped events are counted per type until the counts are
+ * taken for a loss report.
+ *
+ * Events wait in one lane per {@link PacoIntellijEventTypes.Priority}. Each lane has its own capacity,
+ * within the overall one, and its own budget of events and bytes per flush, so that e.g. a burst of
+ * snapshots can neither crowd out nor hold up lifecycle events.
+ *
+ * Not thread-safe: changes must be made one thread at a time, under a lock held by the caller. Only
+ * {@link #recordDrop}, {@link #recordDrops}, {@link #size}, {@link #bytes} and {@link #isEmpty} may be
+ * called from other threads without it, e.g. to decide when to flush.
+ */
+public class BoundedEventQueue {
+  public enum OverflowPolicy {
+    // Evict the oldest queued event
+    DROP_OLDEST,
+    // Evict the oldest event of the lowest priority present, or drop the new event if that is lower
+    DROP_BY_PRIORITY,
+    // Move the oldest queued event to the spool for a later replay; drop it only if the spool is full too
+    SPILL_TO_DISK
+  }
+
+  private static final int EVENT_OVERHEAD_BYTES = 160;
+  private static final int OUTPUT_OVERHEAD_BYTES = 24;
+
+  private static class Entry {
+    final PacoEvent event;
+    final PacoIntellijEventTypes.EventType type;
+    final int bytes;
+    final long sequence;
+    final long timeMillis;
+
+    Entry(PacoEvent event, PacoIntellijEventTypes.EventType type, int bytes, long sequence, long timeMillis) {
+      this.event = event;
+      this.type = type;
+      this.bytes = bytes;
+      this.sequence = sequence;
+      this.timeMillis = timeMillis;
+    }
+  }
+
+  private static class Lane {
+    final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    int maxEvents = Integer.MAX_VALUE;
+    long maxBytes = Long.MAX_VALUE;
+    int flushBudgetEvents = Integer.MAX_VALUE;
+    long flushBudgetBytes = Long.MAX_VALUE;
+    long bytes;
+    // What is left of the budgets in the current flush
+    int remainingEvents;
+    long remainingBytes;
+
+    boolean isFull(Entry incoming) {
+      return !entries.isEmpty() && (entries.size() + 1 > maxEvents || bytes + incoming.bytes > maxBytes);
+    }
+  }
+
+  private final int maxEvents;
+  private final long maxBytes;
+  private final OverflowPolicy policy;
+  private final EventSpool spool;
+  private final Lane[] lanes;
+  private final AtomicLongArray dropped = new AtomicLongArray(PacoIntellijEventTypes.EventType.values().length);
+  private volatile PipelineMetrics metrics;
+  // Only written under the caller's lock, but read without it
+  private volatile int size;
+  private volatile long bytes;
+  private long nextSequence;
+
+  /**
+   * @param spool only used by {@link OverflowPolicy#SPILL_TO_DISK}, may be null otherwise
+   */
+  public BoundedEventQueue(int maxEvents, long maxBytes, OverflowPolicy policy, EventSpool spool) {
+    if (policy == OverflowPolicy.SPILL_TO_DISK && spool == null) {
+      throw new IllegalArgumentException("SPILL_TO_DISK needs a spool");
+    }
+    this.maxEvents = maxEvents;
+    this.maxBytes = maxBytes;
+    this.policy = policy;
+    this.spool = spool;
+    lanes = new Lane[PacoIntellijEventTypes.Priority.values().length];
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new Lane();
+    }
+  }
+
+  /**
+   * Sets the capacity of a lane and how much of it may be taken in one flush. Unconfigured lanes are
+   * only bounded by the overall capacity and have no flush budget.
+   */
+  public BoundedEventQueue configureLane(PacoIntellijEventTypes.Priority priority, int maxEvents, long maxBytes,
+                                         int flushBudgetEvents, long flushBudgetBytes) {
+    Lane lane = lanes[priority.ordinal()];
+    lane.maxEvents = maxEvents;
+    lane.maxBytes = maxBytes;
+    lane.flushBudgetEvents = flushBudgetEvents;
+    lane.flushBudgetBytes = flushBudgetBytes;
+    return this;
+  }
+
+  /**
+   * Also counts every drop in {@code metrics}, where unlike here the counts are never reset.
+   */
+  public BoundedEventQueue withMetrics(PipelineMetrics metrics) {
+    this.metrics = metrics;
+    return this;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long bytes() {
+    return bytes;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void add(PacoEvent event, PacoIntellijEventTypes.EventType type) {
+    long timeMillis = event.getResponseTimeMillis() != Long.MIN_VALUE ? event.getResponseTimeMillis()
+        : System.currentTimeMillis();
+    Entry entry = new Entry(event, type, estimateBytes(event), nextSequence++, timeMillis);
+    Lane lane = lanes[PacoIntellijEventTypes.priorityOf(type).ordinal()];
+    // A full lane makes room within itself; only the overall limit lets lanes evict each other
+    while (lane.isFull(entry)) {
+      evict(removeFrom(lane));
+    }
+    while (size > 0 && (size + 1 > maxEvents || bytes + entry.bytes > maxBytes)) {
+      if (overflow(entry) == entry) {
+        return;
+      }
+    }
+    lane.entries.addLast(entry);
+    lane.bytes += entry.bytes;
+    size++;
+    bytes += entry.bytes;
+  }
+
+  /**
+   * The time of the oldest queued event, or {@link Long#MAX_VALUE} if the queue is empty.
+   */
+  public long oldestTimeMillis() {
+    long oldest = Long.MAX_VALUE;
+    for (Lane lane : lanes) {
+      if (!lane.entries.isEmpty()) {
+        oldest = Math.min(oldest, lane.entries.peekFirst().timeMillis);
+      }
+    }
+    return oldest;
+  }
+
+  /**
+   * Removes and returns all queued events in the order they were added, ignoring the flush budgets.
+   */
+  public List<PacoEvent> takeAll() {
+    List<PacoEvent> events = new ArrayList<PacoEvent>(size);
+    Lane lane;
+    while ((lane = oldestLane()) != null) {
+      events.add(removeFrom(lane).event);
+    }
+    return events;
+  }
+
+  /**
+   * Resets the flush budgets of all lanes.
+   */
+  public void startFlush() {
+    for (Lane lane : lanes) {
+      lane.remainingEvents = lane.flushBudgetEvents;
+      lane.remainingBytes = lane.flushBudgetBytes;
+    }
+  }
+
+  /**
+   * Removes and returns the oldest events of a lane for one frame, up to {@code maxEvents} of them and
+   * about {@code maxBytes}, within what is left of the lane's flush budget. Returns at least one event
+   * if the lane isn't empty and any of its budget is left.
+   */
+  public List<PacoEvent> take(PacoIntellijEventTypes.Priority priority, int maxEvents, long maxBytes) {
+    Lane lane = lanes[priority.ordinal()];
+    List<PacoEvent> events = new ArrayList<PacoEvent>();
+    long taken = 0;
+    while (!lane.entries.isEmpty() && lane.remainingEvents > 0 && lane.remainingBytes > 0
+        && events.size() < maxEvents) {
+      Entry next = lane.entries.peekFirst();
+      if (!events.isEmpty() && taken + next.bytes > Math.min(maxBytes, lane.remainingBytes)) {
+        break;
+      }
+      removeFrom(lane);
+      events.add(next.event);
+      taken += next.bytes;
+      lane.remainingEvents--;
+      lane.remainingBytes -= next.bytes;
+    }
+    return events;
+  }
+
+  public void recordDrop(PacoIntellijEventTypes.EventType type) {
+    recordDrops(type, 1);
+  }
+
+  public void recordDrops(PacoIntellijEventTypes.EventType type, int count) {
+    dropped.addAndGet(type.ordinal(), count);
+    PipelineMetrics currentMetrics = metrics;
+    if (currentMetrics != null) {
+      currentMetrics.recordDrops(type, count);
+    }
+  }
+
+  /**
+   * Returns the number of events dropped per type since the last call, or an empty map if none were.
+   */
+  public Map<PacoIntellijEventTypes.EventType, Long> takeDropCounts() {
+    Map<PacoIntellijEventTypes.EventType, Long> counts =
+        new EnumMap<PacoIntellijEventTypes.EventType, Long>(PacoIntellijEventTypes.EventType.class);
+    for (PacoIntellijEventTypes.EventType type : PacoIntellijEventTypes.EventType.values()) {
+      long count = dropped.getAndSet(type.ordinal(), 0);
+      if (count > 0) {
+        counts.put(type, count);
+      }
+    }
+    return counts;
+  }
+
+  // Makes room for the incoming entry; returns what was removed, which may be the incoming entry itself
+  private Entry overflow(Entry incoming) {
+    Entry victim;
+    if (policy == OverflowPolicy.DROP_BY_PRIORITY) {
+      victim = incoming;
+      int incomingPriority = PacoIntellijEventTypes.priorityOf(incoming.type).ordinal();
+      for (int priority = 0; priority <= incomingPriority; priority++) {
+        if (!lanes[priority].entries.isEmpty()) {
+          victim = removeFrom(lanes[priority]);
+          break;
+        }
+      }
+    } else {
+      victim = removeFrom(oldestLane());
+    }
+    evict(victim);
+    return victim;
+  }
+
+  private void evict(Entry victim) {
+    if (policy == OverflowPolicy.SPILL_TO_DISK && spill(victim)) {
+      return;
+    }
+    recordDrop(victim.type);
+  }
+
+  private boolean spill(Entry entry) {
+    String json = PacoEventUtil.jsonify(entry.event);
+    if (json == null) {
+      return false;
+    }
+    return spool.append(json, false) >= 0;
+  }
+
+  private Lane oldestLane() {
+    Lane oldest = null;
+    for (Lane lane : lanes) {
+      if (!lane.entries.isEmpty()
+          && (oldest == null || lane.entries.peekFirst().sequence < oldest.entries.peekFirst().sequence)) {
+        oldest = lane;
+      }
+    }
+    return oldest;
+  }
+
+  private Entry removeFrom(Lane lane) {
+    Entry entry = lane.entries.pollFirst();
+    lane.bytes -= entry.bytes;
+    size--;
+    bytes -= entry.bytes;
+    return entry;
+  }
+
+  // A rough size of the event's JSON, without serializing it
+  private static int estimateBytes(PacoEvent event) {
+    int estimate = EVENT_OVERHEAD_BYTES;
+    List<Output> outputs = event.getWhat();
+    if (outputs != null) {
+      for (Output output : outputs) {
+        estimate += OUTPUT_OVERHEAD_BYTES + length(output.getName()) + length(output.getValue());
+      }
+    }
+    return estimate;
+  }
+
+  private static int length(String s) {
+    return s == null ? 0 : s.length();
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Decides whether events are captured at all, from how the PAL Event Server answers the batches it is
+ * sent. While the server is paused or overloaded the gate is closed, and listeners return before doing
+ * any work for an event. After a while the gate opens again to probe the server with the next batch.
+ *
+ * While the server is overloaded, batches are also sent less often: every failed batch doubles the
+ * number of flush attempts skipped between batches, and every accepted batch halves it again.
+ */
+public class CaptureGate {
+  public static final Logger log = Logger.getLogger(CaptureGate.class.getName());
+
+  private static final long PAUSED_PROBE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+  private static final long INITIAL_OVERLOAD_BACKOFF_MS = TimeUnit.SECONDS.toMillis(5);
+  private static final long MAX_OVERLOAD_BACKOFF_MS = TimeUnit.MINUTES.toMillis(5);
+  private static final int MAX_FLUSH_SLOWDOWN = 32;
+
+  private final long pausedProbeIntervalMs;
+  private final long initialOverloadBackoffMs;
+  private final long maxOverloadBackoffMs;
+  // The gate is closed until this System.nanoTime()
+  private volatile long closedUntilNanos = System.nanoTime();
+  private boolean paused;
+  private long overloadBackoffMs;
+  private int flushSlowdown = 1;
+  private int flushTicks;
+
+  public CaptureGate() {
+    this(PAUSED_PROBE_INTERVAL_MS, INITIAL_OVERLOAD_BACKOFF_MS, MAX_OVERLOAD_BACKOFF_MS);
+  }
+
+  CaptureGate(long pausedProbeIntervalMs, long initialOverloadBackoffMs, long maxOverloadBackoffMs) {
+    this.pausedProbeIntervalMs = pausedProbeIntervalMs;
+    this.initialOverloadBackoffMs = initialOverloadBackoffMs;
+    this.maxOverloadBackoffMs = maxOverloadBackoffMs;
+    overloadBackoffMs = initialOverloadBackoffMs;
+  }
+
+  /**
+   * Whether events should be captured. Cheap enough to call at the top of every listener.
+   */
+  public boolean isOpen() {
+    return System.nanoTime() - closedUntilNanos >= 0;
+  }
+
+  /**
+   * Called on every flush attempt; false if this attempt should be skipped.
+   */
+  public synchronized boolean shouldFlush() {
+    flushTicks++;
+    if (flushTicks < flushSlowdown) {
+      return false;
+    }
+    flushTicks = 0;
+    return true;
+  }
+
+  public synchronized void onAccepted() {
+    if (paused || !isOpen()) {
+      log.info("PAL Event Server accepts events again, resuming capture");
+    }
+    paused = false;
+    // E.g. spooled events sent while the gate was closed: the server has recovered, so no need to wait
+    closedUntilNanos = System.nanoTime();
+    overloadBackoffMs = initialOverloadBackoffMs;
+    flushSlowdown = Math.max(1, flushSlowdown / 2);
+  }
+
+  public synchronized void onPaused() {
+    if (!paused) {
+      log.info("PAL Event Server is paused, stopping capture");
+    }
+    paused = true;
+    closeFor(pausedProbeIntervalMs);
+  }
+
+  public synchronized void onOverloaded() {
+    log.info("PAL Event Server is overloaded, stopping capture for " + overloadBackoffMs + "ms");
+    closeFor(overloadBackoffMs);
+    overloadBackoffMs = Math.min(overloadBackoffMs * 2, maxOverloadBackoffMs);
+    flushSlowdown = Math.min(flushSlowdown * 2, MAX_FLUSH_SLOWDOWN);
+  }
+
+  private void closeFor(long durationMs) {
+    closedUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+  }
+}
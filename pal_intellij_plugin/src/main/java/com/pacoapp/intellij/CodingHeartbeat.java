@@ -0,0 +1,161 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import com.google.common.collect.Maps;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Tracks active coding time from cursor actions and reports it as one CODING_SESSION event per
+ * activity window instead of one event per keystroke. A window ends when there has been no activity
+ * for {@code idleGapNanos}, or when activity moves to another project.
+ *
+ * Within a window, the time between two consecutive actions counts as active time in the file of the
+ * earlier one. Recording an action only reads {@link System#nanoTime()} and updates a few fields, so
+ * it allocates nothing unless a window starts or a new file is touched.
+ */
+public class CodingHeartbeat {
+
+  public interface Sink {
+    void onSession(Map<String, String> data);
+  }
+
+  private static final int INITIAL_FILE_SLOTS = 8;
+
+  private final Sink sink;
+  private final long idleGapNanos;
+
+  private boolean active;
+  private Project project;
+  private long windowStartNanos;
+  private long windowStartMillis;
+  private long lastActivityNanos;
+  private int actions;
+  // Files touched in this window, with their active time and number of actions
+  private VirtualFile[] files = new VirtualFile[INITIAL_FILE_SLOTS];
+  private long[] fileActiveNanos = new long[INITIAL_FILE_SLOTS];
+  private int[] fileActions = new int[INITIAL_FILE_SLOTS];
+  private int fileCount;
+  private int currentFile;
+
+  public CodingHeartbeat(Sink sink, long idleGapNanos) {
+    this.sink = sink;
+    this.idleGapNanos = idleGapNanos;
+  }
+
+  public synchronized void onActivity(Project project, VirtualFile file) {
+    final long now = System.nanoTime();
+    if (active && (now - lastActivityNanos > idleGapNanos || project != this.project)) {
+      endWindow();
+    }
+    if (!active) {
+      active = true;
+      this.project = project;
+      windowStartNanos = now;
+      windowStartMillis = System.currentTimeMillis();
+    } else {
+      fileActiveNanos[currentFile] += now - lastActivityNanos;
+    }
+    currentFile = indexOf(file);
+    fileActions[currentFile]++;
+    actions++;
+    lastActivityNanos = now;
+  }
+
+  public synchronized boolean isActive() {
+    return active;
+  }
+
+  /**
+   * Reports the current window if it has been idle long enough to be over.
+   */
+  public synchronized void closeIfIdle() {
+    if (active && System.nanoTime() - lastActivityNanos > idleGapNanos) {
+      endWindow();
+    }
+  }
+
+  /**
+   * Reports the current window, if any, e.g. when the IDE shuts down.
+   */
+  public synchronized void close() {
+    if (active) {
+      endWindow();
+    }
+  }
+
+  private int indexOf(VirtualFile file) {
+    for (int i = 0; i < fileCount; i++) {
+      if (files[i] == file) {
+        return i;
+      }
+    }
+    if (fileCount == files.length) {
+      files = Arrays.copyOf(files, fileCount * 2);
+      fileActiveNanos = Arrays.copyOf(fileActiveNanos, fileCount * 2);
+      fileActions = Arrays.copyOf(fileActions, fileCount * 2);
+    }
+    files[fileCount] = file;
+    return fileCount++;
+  }
+
+  private void endWindow() {
+    final long durationMillis = (lastActivityNanos - windowStartNanos) / 1000000;
+    long activeNanos = 0;
+    int mostActive = 0;
+    final StringBuilder perFile = new StringBuilder();
+    for (int i = 0; i < fileCount; i++) {
+      activeNanos += fileActiveNanos[i];
+      if (fileActiveNanos[i] > fileActiveNanos[mostActive]) {
+        mostActive = i;
+      }
+      // One "<active ms> <actions> <path>" line per file
+      perFile.append(fileActiveNanos[i] / 1000000).append(' ').append(fileActions[i]).append(' ')
+          .append(pathOf(files[i])).append('\n');
+    }
+
+    final Map<String, String> data = Maps.newHashMap();
+    if (project != null) {
+      data.put("project", project.getName());
+      data.put("project_dir", project.getBasePath());
+    }
+    data.put("file", pathOf(files[mostActive]));
+    data.put("files", Integer.toString(fileCount));
+    data.put("file_activity", perFile.toString());
+    data.put("actions", Integer.toString(actions));
+    data.put("active_ms", Long.toString(activeNanos / 1000000));
+    data.put("duration_ms", Long.toString(durationMillis));
+    data.put("first_timestamp", PacoApplicationComponent.EVENT_TIME_FORMAT.print(windowStartMillis));
+    data.put("last_timestamp", PacoApplicationComponent.EVENT_TIME_FORMAT.print(windowStartMillis + durationMillis));
+
+    active = false;
+    project = null;
+    Arrays.fill(files, 0, fileCount, null);
+    Arrays.fill(fileActiveNanos, 0, fileCount, 0);
+    Arrays.fill(fileActions, 0, fileCount, 0);
+    fileCount = 0;
+    actions = 0;
+    sink.onSession(data);
+  }
+
+  private static String pathOf(VirtualFile file) {
+    return file != null ? file.getCanonicalPath() : "no file";
+  }
+}
@@ -175,6 +175,10 @@ public class CommandExecutionListener implements AnActionListener {
 
   @Override
   public void beforeActionPerformed(AnAction anAction, DataContext dataContext, AnActionEvent event) {
+    // Skip the PSI lookups and diffing while the server isn't taking events
+    if (!PacoApplicationComponent.isCapturing()) {
+      return;
+    }
     if (isCopy(anAction)) {
       recordCopy(dataContext, event);
     } else if (isCut(anAction)) {
@@ -188,7 +192,9 @@ public class CommandExecutionListener implements AnActionListener {
     } else {
       Class<? extends AnAction> actionType = anAction.getClass();
       if (cursorMovementAction(actionType)) {
-        // TODO update programming heartbeat
+        // Far too frequent for an event each, so these only feed the coding heartbeat
+        Editor editor = CommonDataKeys.EDITOR.getData(dataContext);
+        PacoApplicationComponent.recordCodingActivity(event.getProject(), editor != null ? getFile(editor) : null);
         return;
       }
       log.info("Action type = " + actionType.getName());
@@ -244,6 +250,9 @@ public class CommandExecutionListener implements AnActionListener {
 
   @Override
   public void afterActionPerformed(AnAction action, DataContext dataContext, AnActionEvent event) {
+    if (!PacoApplicationComponent.isCapturing()) {
+      return;
+    }
     if (isCut(action)) {
       cutInProgress = false;
       recordCut(dataContext, event);
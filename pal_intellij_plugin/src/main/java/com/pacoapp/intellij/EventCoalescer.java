@@ -0,0 +1,122 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Merges runs of consecutive identical events, such as DOCUMENT_FOCUSED while flipping through tabs or
+ * IDE_ACTION while a key is held down, into one event with a repeat count and the times of the first
+ * and last event of the run. A run ends with the first event that differs, or once it is
+ * {@code windowMs} old. The merged event keeps the data of the first event of the run.
+ *
+ * Not thread-safe; it sits between the event ring and the queue on the flush thread.
+ */
+public class EventCoalescer {
+
+  public interface Sink {
+    void accept(PacoIntellijEventTypes.EventType type, Map<String, String> data, long firstTimeMillis,
+                long lastTimeMillis, int repeatCount);
+  }
+
+  private final Sink sink;
+  private final long windowMs;
+  // For each type that is coalesced, the data fields that must match, or null if all of them must
+  private final EnumMap<PacoIntellijEventTypes.EventType, String[]> keyFields =
+      new EnumMap<PacoIntellijEventTypes.EventType, String[]>(PacoIntellijEventTypes.EventType.class);
+
+  private PacoIntellijEventTypes.EventType heldType;
+  private Map<String, String> heldData;
+  private long heldFirstMillis;
+  private long heldLastMillis;
+  private int heldCount;
+
+  public EventCoalescer(Sink sink, long windowMs) {
+    this.sink = sink;
+    this.windowMs = windowMs;
+  }
+
+  /**
+   * Coalesces events of {@code type} that match in {@code fields}, or in all their data if none are
+   * given.
+   */
+  public EventCoalescer coalesce(PacoIntellijEventTypes.EventType type, String... fields) {
+    keyFields.put(type, fields.length == 0 ? null : fields);
+    return this;
+  }
+
+  public boolean isHolding() {
+    return heldType != null;
+  }
+
+  public void add(PacoIntellijEventTypes.EventType type, Map<String, String> data, long timeMillis) {
+    if (heldType != null) {
+      if (type == heldType && timeMillis - heldFirstMillis <= windowMs && matches(type, data)) {
+        heldCount++;
+        heldLastMillis = Math.max(heldLastMillis, timeMillis);
+        return;
+      }
+      flush();
+    }
+    if (!keyFields.containsKey(type)) {
+      sink.accept(type, data, timeMillis, timeMillis, 1);
+      return;
+    }
+    heldType = type;
+    heldData = data;
+    heldFirstMillis = timeMillis;
+    heldLastMillis = timeMillis;
+    heldCount = 1;
+  }
+
+  /**
+   * Passes on the held run if its window has passed.
+   */
+  public void flushExpired(long nowMillis) {
+    if (heldType != null && nowMillis - heldFirstMillis > windowMs) {
+      flush();
+    }
+  }
+
+  /**
+   * Passes on the held run, if any.
+   */
+  public void flush() {
+    if (heldType == null) {
+      return;
+    }
+    final PacoIntellijEventTypes.EventType type = heldType;
+    final Map<String, String> data = heldData;
+    heldType = null;
+    heldData = null;
+    sink.accept(type, data, heldFirstMillis, heldLastMillis, heldCount);
+  }
+
+  private boolean matches(PacoIntellijEventTypes.EventType type, Map<String, String> data) {
+    final String[] fields = keyFields.get(type);
+    if (fields == null || heldData == null || data == null) {
+      return Objects.equals(heldData, data);
+    }
+    for (String field : fields) {
+      if (!Objects.equals(heldData.get(field), data.get(field))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,120 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import com.pacoapp.paco.shared.model2.Output;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Per event type sampling and rate limits, checked as events are queued, after runs of them have been
+ * coalesced, so a coalesced run counts as one event. An event is first sampled with the type's sample
+ * rate, then has to take a token from the type's bucket, which holds {@code burst} tokens and refills
+ * at {@code ratePerSecond}. Types without a policy are always admitted.
+ *
+ * Policies can be overridden with a {@code pal.rate.<EVENT_TYPE>=<sample rate>,<burst>,<rate per
+ * second>} system property, e.g. {@code -Dpal.rate.IDE_ACTION=0.5,20,10}.
+ */
+public class EventRatePolicy {
+  public static final Logger log = Logger.getLogger(EventRatePolicy.class.getName());
+
+  public enum Decision {
+    ADMIT, NOT_SAMPLED, RATE_LIMITED
+  }
+
+  private static class Policy {
+    final double sampleRate;
+    final TokenBucket bucket;
+
+    Policy(double sampleRate, int burst, double ratePerSecond) {
+      this.sampleRate = sampleRate;
+      this.bucket = new TokenBucket(ratePerSecond, burst);
+    }
+  }
+
+  private final Policy[] policies = new Policy[PacoIntellijEventTypes.EventType.values().length];
+
+  public static EventRatePolicy withDefaults() {
+    return new EventRatePolicy()
+        .limit(PacoIntellijEventTypes.EventType.DOCUMENT_CHANGED, 1.0, 100, 50)
+        .limit(PacoIntellijEventTypes.EventType.IDE_ACTION, 1.0, 50, 20)
+        .limit(PacoIntellijEventTypes.EventType.DOCUMENT_FOCUSED, 1.0, 20, 5)
+        .limit(PacoIntellijEventTypes.EventType.COPY_ACTION, 1.0, 10, 2)
+        .limit(PacoIntellijEventTypes.EventType.CUT_ACTION, 1.0, 10, 2)
+        .limit(PacoIntellijEventTypes.EventType.PASTE_ACTION, 1.0, 10, 2)
+        .overrideFromSystemProperties();
+  }
+
+  public EventRatePolicy limit(PacoIntellijEventTypes.EventType type, double sampleRate, int burst,
+                               double ratePerSecond) {
+    if (sampleRate < 0 || sampleRate > 1) {
+      throw new IllegalArgumentException("sample rate must be between 0 and 1: " + sampleRate);
+    }
+    policies[type.ordinal()] = new Policy(sampleRate, burst, ratePerSecond);
+    return this;
+  }
+
+  public EventRatePolicy overrideFromSystemProperties() {
+    for (PacoIntellijEventTypes.EventType type : PacoIntellijEventTypes.EventType.values()) {
+      String value = System.getProperty("pal.rate." + type.name());
+      if (value == null) {
+        continue;
+      }
+      String[] parts = value.split(",");
+      try {
+        limit(type, Double.parseDouble(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+            Double.parseDouble(parts[2].trim()));
+      } catch (RuntimeException e) {
+        log.warning("Ignoring invalid rate policy for " + type + ": " + value);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Decides whether to capture an event of {@code type}. Allocates nothing.
+   */
+  public Decision admit(PacoIntellijEventTypes.EventType type) {
+    final Policy policy = policies[type.ordinal()];
+    if (policy == null) {
+      return Decision.ADMIT;
+    }
+    if (policy.sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= policy.sampleRate) {
+      return Decision.NOT_SAMPLED;
+    }
+    return policy.bucket.tryTake() ? Decision.ADMIT : Decision.RATE_LIMITED;
+  }
+
+  /**
+   * The fraction of events of {@code type} that are sampled, for re-weighting counts downstream.
+   */
+  public double sampleRate(PacoIntellijEventTypes.EventType type) {
+    final Policy policy = policies[type.ordinal()];
+    return policy == null ? 1.0 : policy.sampleRate;
+  }
+
+  /**
+   * Adds a {@code sample_rate} output to an event of {@code type} if the type is sampled.
+   */
+  public void addSampleRate(PacoIntellijEventTypes.EventType type, List<Output> outputs) {
+    final double sampleRate = sampleRate(type);
+    if (sampleRate < 1) {
+      outputs.add(new Output("sample_rate", Double.toString(sampleRate)));
+    }
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size ring of reusable event slots, filled by any number of listener threads and drained by
+ * the single flush thread. Publishing claims a slot with one compare-and-set and allocates nothing, so
+ * it is safe to call on the EDT for every keystroke.
+ *
+ * Each slot carries a sequence number: a producer may fill the slot for position p once its sequence
+ * is p, and publishes it by setting the sequence to p + 1. The consumer hands the slot back for the
+ * next lap by setting its sequence to p + capacity.
+ */
+public class EventRingBuffer {
+
+  public interface SlotConsumer {
+    void accept(PacoIntellijEventTypes.EventType type, Map<String, String> data, long timeMillis);
+  }
+
+  private final int mask;
+  private final AtomicLongArray sequences;
+  private final PacoIntellijEventTypes.EventType[] types;
+  private final Map<String, String>[] data;
+  private final long[] timesMillis;
+  private final AtomicLong tail = new AtomicLong();
+  // Only written by the consumer; published with lazySet, so size() can read it from any thread
+  private final AtomicLong head = new AtomicLong();
+
+  @SuppressWarnings("unchecked")
+  public EventRingBuffer(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+    }
+    mask = capacity - 1;
+    sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+    types = new PacoIntellijEventTypes.EventType[capacity];
+    data = new Map[capacity];
+    timesMillis = new long[capacity];
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * Fills the next free slot. Returns false without blocking if the ring is full.
+   */
+  public boolean publish(PacoIntellijEventTypes.EventType type, Map<String, String> eventData, long timeMillis) {
+    long position = tail.get();
+    while (true) {
+      final int index = (int) position & mask;
+      final long lag = sequences.get(index) - position;
+      if (lag == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          types[index] = type;
+          data[index] = eventData;
+          timesMillis[index] = timeMillis;
+          sequences.lazySet(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (lag < 0) {
+        // The consumer hasn't released this slot from the previous lap yet
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Passes up to {@code maxEvents} published events to {@code consumer} in order and releases their
+   * slots. Must only be called by one thread at a time. Returns the number of events drained.
+   */
+  public int drain(SlotConsumer consumer, int maxEvents) {
+    int drained = 0;
+    long position = head.get();
+    while (drained < maxEvents) {
+      final int index = (int) position & mask;
+      if (sequences.get(index) != position + 1) {
+        // Empty, or the producer that claimed this slot is still filling it
+        break;
+      }
+      final PacoIntellijEventTypes.EventType type = types[index];
+      final Map<String, String> eventData = data[index];
+      final long timeMillis = timesMillis[index];
+      types[index] = null;
+      data[index] = null;
+      sequences.lazySet(index, position + mask + 1);
+      position++;
+      head.lazySet(position);
+      drained++;
+      consumer.accept(type, eventData, timeMillis);
+    }
+    return drained;
+  }
+
+  /**
+   * Whether any slot was claimed that hasn't been drained yet. Must only be called by the consumer.
+   */
+  public boolean isEmpty() {
+    return tail.get() == head.get();
+  }
+
+  /**
+   * An estimate of the number of published events not yet drained. Safe to call from any thread.
+   */
+  public int size() {
+    return (int) Math.max(0, Math.min(tail.get() - head.get(), capacity()));
+  }
+}
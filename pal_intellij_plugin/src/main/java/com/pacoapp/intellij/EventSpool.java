@@ -0,0 +1,388 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * A write-ahead log of events on their way to the PAL Event Server, so that events survive a failed
+ * send or an IDE exit. Events are appended before they are sent and acknowledged once the server has
+ * accepted them; anything unacknowledged, e.g. from a previous IDE session, is handed out again for
+ * replay at no more than a fixed rate.
+ *
+ * The log is a directory of memory-mapped segment files, named after the hex id of their first event.
+ * Each record is a 4-byte length, a 1-byte acknowledged flag and the event's JSON; a zero length ends a
+ * segment. The length is written last, so a record cut short by a crash is never read back. Segments
+ * whose events are all acknowledged are deleted. Where a mapped file can't be deleted, as on Windows,
+ * that happens on the next start instead, before the segment is mapped again.
+ */
+public class EventSpool {
+  public static final Logger log = Logger.getLogger(EventSpool.class.getName());
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int RECORD_HEADER_BYTES = 5;
+  private static final byte PENDING = 0;
+  private static final byte ACKED = 1;
+
+  public static class Record {
+    public final long id;
+    // UTF-8
+    public final byte[] json;
+
+    Record(long id, byte[] json) {
+      this.id = id;
+      this.json = json;
+    }
+  }
+
+  private static class Segment {
+    final long firstId;
+    final File file;
+    final MappedByteBuffer buffer;
+    int[] offsets = new int[256];
+    int count;
+    int writePosition;
+    // Acknowledged, and acknowledged or handed out
+    final BitSet acked = new BitSet();
+    final BitSet taken = new BitSet();
+    int ackedCount;
+
+    Segment(long firstId, File file, MappedByteBuffer buffer) {
+      this.firstId = firstId;
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    void addOffset(int offset) {
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count * 2);
+      }
+      offsets[count++] = offset;
+    }
+
+    boolean contains(long id) {
+      return id >= firstId && id < firstId + count;
+    }
+
+    boolean isFullyAcked() {
+      return ackedCount == count;
+    }
+  }
+
+  private final File directory;
+  private final int segmentBytes;
+  private final long maxBytes;
+  private final TokenBucket replayLimiter;
+  private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+  private Segment active;
+  private long nextId;
+  private long totalBytes;
+  private int replayable;
+
+  /**
+   * Opens the spool in {@code directory}, picking up the unacknowledged events of earlier sessions.
+   *
+   * @param maxBytes         appends fail once the segments take this much space
+   * @param replayPerSecond  the rate at which unacknowledged events are handed out for replay
+   */
+  public EventSpool(File directory, int segmentBytes, long maxBytes, double replayPerSecond) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxBytes = maxBytes;
+    this.replayLimiter = new TokenBucket(replayPerSecond, replayPerSecond);
+    load();
+  }
+
+  public synchronized boolean hasReplayable() {
+    return replayable > 0;
+  }
+
+  /**
+   * Appends an event and returns its id, or -1 if the spool is full or can't be written. Events that
+   * are {@code inFlight} are about to be sent and aren't handed out for replay unless released.
+   */
+  public long append(String json, boolean inFlight) {
+    final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    return append(bytes, 0, bytes.length, inFlight);
+  }
+
+  /**
+   * Like {@link #append(String, boolean)}, for JSON already encoded as UTF-8.
+   */
+  public synchronized long append(byte[] json, int offset, int length, boolean inFlight) {
+    final int recordBytes = RECORD_HEADER_BYTES + length;
+    try {
+      // Leaves room for the terminating zero length
+      if (active == null || active.writePosition + recordBytes + 4 > active.buffer.capacity()) {
+        if (totalBytes + Math.max(segmentBytes, recordBytes + 4) > maxBytes) {
+          return -1;
+        }
+        roll(recordBytes + 4);
+      }
+    } catch (IOException e) {
+      log.warning("Could not create spool segment: " + e.getMessage());
+      return -1;
+    }
+
+    final Segment segment = active;
+    final int recordOffset = segment.writePosition;
+    final ByteBuffer buffer = segment.buffer;
+    buffer.position(recordOffset + RECORD_HEADER_BYTES);
+    buffer.put(json, offset, length);
+    buffer.putInt(recordOffset + recordBytes, 0);
+    buffer.put(recordOffset + 4, PENDING);
+    buffer.putInt(recordOffset, length);
+    segment.writePosition += recordBytes;
+    final int index = segment.count;
+    segment.addOffset(recordOffset);
+    nextId++;
+    if (inFlight) {
+      segment.taken.set(index);
+    } else {
+      replayable++;
+    }
+    return segment.firstId + index;
+  }
+
+  /**
+   * Marks events as accepted by the server. Ids that aren't in the spool are ignored.
+   */
+  public synchronized void ack(long[] ids) {
+    for (long id : ids) {
+      final Segment segment = segmentOf(id);
+      if (segment == null) {
+        continue;
+      }
+      final int index = (int) (id - segment.firstId);
+      if (segment.acked.get(index)) {
+        continue;
+      }
+      if (!segment.taken.get(index)) {
+        replayable--;
+      }
+      segment.acked.set(index);
+      segment.taken.set(index);
+      segment.ackedCount++;
+      segment.buffer.put(segment.offsets[index] + 4, ACKED);
+      if (segment != active && segment.isFullyAcked()) {
+        delete(segment);
+      }
+    }
+  }
+
+  /**
+   * Makes events that were sent but not accepted available for replay.
+   */
+  public synchronized void release(long[] ids) {
+    for (long id : ids) {
+      final Segment segment = segmentOf(id);
+      if (segment == null) {
+        continue;
+      }
+      final int index = (int) (id - segment.firstId);
+      if (segment.taken.get(index) && !segment.acked.get(index)) {
+        segment.taken.clear(index);
+        replayable++;
+      }
+    }
+  }
+
+  /**
+   * Hands out the oldest unacknowledged events that aren't in flight, up to {@code maxEvents} and about
+   * {@code maxBytes}, and no faster than the replay rate. They are in flight until acked or released.
+   */
+  public synchronized List<Record> takeReplay(int maxEvents, long maxBytes) {
+    final List<Record> records = new ArrayList<Record>();
+    long bytes = 0;
+    for (Segment segment : segments.values()) {
+      int index = segment.taken.nextClearBit(0);
+      while (index < segment.count) {
+        if (records.size() >= maxEvents || bytes >= maxBytes || !replayLimiter.tryTake()) {
+          return records;
+        }
+        final int offset = segment.offsets[index];
+        final byte[] json = new byte[segment.buffer.getInt(offset)];
+        final ByteBuffer source = segment.buffer.duplicate();
+        source.position(offset + RECORD_HEADER_BYTES);
+        source.get(json);
+        records.add(new Record(segment.firstId + index, json));
+        bytes += json.length;
+        segment.taken.set(index);
+        replayable--;
+        index = segment.taken.nextClearBit(index + 1);
+      }
+    }
+    return records;
+  }
+
+  /**
+   * How long until {@link #takeReplay} can hand out another event; 0 if it can now.
+   */
+  public synchronized long millisUntilReplay() {
+    return replayLimiter.millisUntilAvailable();
+  }
+
+  /**
+   * Flushes the segments to disk. Until then, appended events survive a crash of the IDE but not
+   * necessarily of the machine.
+   */
+  public synchronized void force() {
+    for (Segment segment : segments.values()) {
+      segment.buffer.force();
+    }
+  }
+
+  private Segment segmentOf(long id) {
+    final Map.Entry<Long, Segment> entry = segments.floorEntry(id);
+    return entry != null && entry.getValue().contains(id) ? entry.getValue() : null;
+  }
+
+  private void roll(int minBytes) throws IOException {
+    final Segment previous = active;
+    active = null;
+    if (previous != null) {
+      previous.buffer.force();
+      if (previous.isFullyAcked()) {
+        delete(previous);
+      }
+    }
+    directory.mkdirs();
+    final File file = new File(directory, String.format("%016x", nextId) + SEGMENT_SUFFIX);
+    active = open(nextId, file, Math.max(segmentBytes, minBytes));
+    segments.put(active.firstId, active);
+    totalBytes += active.buffer.capacity();
+  }
+
+  private static Segment open(long firstId, File file, int size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      // The mapping stays valid after the file is closed
+      return new Segment(firstId, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+  }
+
+  private void load() {
+    final File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+    if (files == null) {
+      return;
+    }
+    final TreeMap<Long, File> sorted = new TreeMap<Long, File>();
+    for (File file : files) {
+      try {
+        sorted.put(Long.parseUnsignedLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()), 16), file);
+      } catch (NumberFormatException e) {
+        log.warning("Ignoring unexpected file in the spool: " + file);
+      }
+    }
+    for (Map.Entry<Long, File> entry : sorted.entrySet()) {
+      final File file = entry.getValue();
+      try {
+        final int count = countPending(file);
+        if (count >= 0) {
+          // Left behind by a session that couldn't delete it while it was mapped
+          nextId = Math.max(nextId, entry.getKey() + count);
+          if (!file.delete()) {
+            log.warning("Could not delete spool segment " + file);
+          }
+          continue;
+        }
+        final Segment segment = open(entry.getKey(), file, (int) file.length());
+        scan(segment);
+        nextId = Math.max(nextId, segment.firstId + segment.count);
+        segments.put(segment.firstId, segment);
+        totalBytes += segment.buffer.capacity();
+        replayable += segment.count - segment.ackedCount;
+      } catch (IOException e) {
+        log.warning("Could not read spool segment " + file + ": " + e.getMessage());
+      }
+    }
+    if (replayable > 0) {
+      log.info(replayable + " events from an earlier session are waiting to be sent");
+    }
+  }
+
+  // Returns the number of records if they are all acknowledged, or -1 if any isn't. Only reads the
+  // record headers, without mapping the file.
+  private static int countPending(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+      final long size = channel.size();
+      long offset = 0;
+      int count = 0;
+      while (offset + RECORD_HEADER_BYTES <= size) {
+        header.clear();
+        while (header.hasRemaining()) {
+          if (channel.read(header, offset + header.position()) < 0) {
+            throw new EOFException("Spool segment " + file + " was truncated while being read");
+          }
+        }
+        final int length = header.getInt(0);
+        if (length <= 0 || offset + RECORD_HEADER_BYTES + length > size) {
+          break;
+        }
+        if (header.get(4) != ACKED) {
+          return -1;
+        }
+        count++;
+        offset += RECORD_HEADER_BYTES + length;
+      }
+      return count;
+    }
+  }
+
+  private static void scan(Segment segment) {
+    final MappedByteBuffer buffer = segment.buffer;
+    int offset = 0;
+    while (offset + RECORD_HEADER_BYTES <= buffer.capacity()) {
+      final int length = buffer.getInt(offset);
+      if (length <= 0 || offset + RECORD_HEADER_BYTES + length > buffer.capacity()) {
+        break;
+      }
+      final int index = segment.count;
+      segment.addOffset(offset);
+      if (buffer.get(offset + 4) == ACKED) {
+        segment.acked.set(index);
+        segment.taken.set(index);
+        segment.ackedCount++;
+      }
+      offset += RECORD_HEADER_BYTES + length;
+    }
+    segment.writePosition = offset;
+  }
+
+  private void delete(Segment segment) {
+    segments.remove(segment.firstId);
+    totalBytes -= segment.buffer.capacity();
+    if (!segment.file.delete()) {
+      // Fails on Windows while the file is still mapped; load() deletes it on a later start instead
+      log.fine("Could not delete spool segment " + segment.file);
+    }
+  }
+}
@@ -37,6 +37,9 @@ public class FileListener implements VirtualFileListener {
 
   @Override
   public void contentsChanged(@NotNull VirtualFileEvent event) {
+    if (!PacoApplicationComponent.isCapturing()) {
+      return;
+    }
     if (event.isFromRefresh()) {
       recordRefresh(event);
     } else if (event.isFromSave()) {
@@ -46,6 +49,9 @@ public class FileListener implements VirtualFileListener {
 
   @Override
   public void fileCreated(@NotNull VirtualFileEvent event) {
+    if (!PacoApplicationComponent.isCapturing()) {
+      return;
+    }
     VirtualFile file = event.getFile();
     String fileContents = getFileContents(file);
     HashMap<String, String> data = getDataMapWithFileAdded(event.getFile());
@@ -64,18 +70,27 @@ public class FileListener implements VirtualFileListener {
 
   @Override
   public void fileDeleted(@NotNull VirtualFileEvent event) {
+    if (!PacoApplicationComponent.isCapturing()) {
+      return;
+    }
     HashMap<String, String> data = getDataMapWithFileAdded(event.getFile());
     pacoAppComponent.appendPacoEvent(PacoIntellijEventTypes.EventType.DOCUMENT_DELETED, data);
   }
 
   @Override
   public void fileMoved(@NotNull VirtualFileMoveEvent event) {
+    if (!PacoApplicationComponent.isCapturing()) {
+      return;
+    }
     HashMap<String, String> data = getDataMapWithFileAdded(event.getFile());
     pacoAppComponent.appendPacoEvent(PacoIntellijEventTypes.EventType.DOCUMENT_MOVED, data);
   }
 
   @Override
   public void fileCopied(@NotNull VirtualFileCopyEvent event) {
+    if (!PacoApplicationComponent.isCapturing()) {
+      return;
+    }
     HashMap<String, String> data = getDataMapWithFileAdded(event.getFile());
     pacoAppComponent.appendPacoEvent(PacoIntellijEventTypes.EventType.DOCUMENT_COPIED, data);
   }
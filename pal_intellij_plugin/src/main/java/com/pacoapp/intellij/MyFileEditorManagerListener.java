@@ -32,18 +32,27 @@ public class MyFileEditorManagerListener implements FileEditorManagerListener {
 
   @Override
   public void fileOpened(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+    if (!PacoApplicationComponent.isCapturing()) {
+      return;
+    }
     HashMap<String, String> data = FileListener.getDataMapWithFileAdded(file);
     pacoApplicationComponent.appendPacoEvent(PacoIntellijEventTypes.EventType.DOCUMENT_OPENED, data);
   }
 
   @Override
   public void fileClosed(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+    if (!PacoApplicationComponent.isCapturing()) {
+      return;
+    }
     HashMap<String, String> data = FileListener.getDataMapWithFileAdded(file);
     pacoApplicationComponent.appendPacoEvent(PacoIntellijEventTypes.EventType.DOCUMENT_CLOSED, data);
   }
 
   @Override
   public void selectionChanged(@NotNull FileEditorManagerEvent event) {
+    if (!PacoApplicationComponent.isCapturing()) {
+      return;
+    }
     HashMap<String, String> data = FileListener.getDataMapWithFileAdded(event.getNewFile());
     pacoApplicationComponent.appendPacoEvent(PacoIntellijEventTypes.EventType.DOCUMENT_FOCUSED, data);
   }
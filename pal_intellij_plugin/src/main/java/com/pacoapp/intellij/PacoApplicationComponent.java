@@ -26,6 +26,7 @@ import com.intellij.openapi.actionSystem.ActionManager;
 import com.intellij.openapi.actionSystem.ex.AnActionListener;
 import com.intellij.openapi.application.ApplicationInfo;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.components.ApplicationComponent;
 import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.extensions.Extensions;
@@ -45,36 +46,125 @@ import com.pacoapp.intellij.launch.PacoBeforeRunTaskProvider;
 import com.pacoapp.intellij.launch.PacoRunManagerListener;
 import com.pacoapp.paco.UserPreferences;
 import com.pacoapp.paco.net.EventUploader;
+import com.pacoapp.paco.net.tesp.TespChunkedOutputStream;
 import com.pacoapp.paco.net.tesp.TespClient;
-import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEvent;
+import com.pacoapp.paco.net.tesp.TespFallbackTransport;
+import com.pacoapp.paco.net.tesp.TespFrameOutputStream;
+import com.pacoapp.paco.net.tesp.TespTcpTransport;
+import com.pacoapp.paco.net.tesp.TespTransport;
+import com.pacoapp.paco.net.tesp.TespUnixSocketTransport;
+import com.pacoapp.paco.net.tesp.message.request.TespRequest;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEventBinary;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEventSession;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestEncoded;
+import com.pacoapp.paco.net.tesp.message.response.TespResponse;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseError;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseInvalidRequest;
+import com.pacoapp.paco.net.tesp.message.response.TespResponsePaused;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseSuccess;
 import com.pacoapp.paco.shared.model2.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.*;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 public class PacoApplicationComponent implements ApplicationComponent {
 
   public static final Logger log = Logger.getLogger(PacoApplicationComponent.class.getName());
   private static final boolean DEBUG = false;
+  // The PAL Event Server listens on loopback TCP. A Unix domain socket is only tried if one is configured.
+  private static final String TESP_HOST = System.getProperty("pal.tesp.host", "127.0.0.1");
+  private static final int TESP_PORT = Integer.getInteger("pal.tesp.port", 31415);
+  private static final String TESP_UNIX_SOCKET_PATH = System.getProperty("pal.tesp.socketPath");
   private static ExperimentDAO experiment;
   private static UserPreferences userPreferences;
-  private final int queueTimeoutSeconds = 10;
-  private static ConcurrentLinkedQueue<PacoEvent> pacoEventsQueue = new ConcurrentLinkedQueue<PacoEvent>();
-  private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-  private static ScheduledFuture<?> scheduledFuture;
+  // The apps_used output of every event, computed at startup
+  private static volatile String ideVersion;
+  private static final int EVENT_RING_CAPACITY = 8192;
+  private static final int EVENT_DRAIN_INTERVAL_MS = 250;
+  private static final int FLUSH_RETRY_INTERVAL_MS = 10000;
+  private static final EventRingBuffer eventRing = new EventRingBuffer(EVENT_RING_CAPACITY);
+  // Tunable with -D options in the IDE's vmoptions
+  private static final int QUEUE_MAX_EVENTS = Integer.getInteger("pal.queue.maxEvents", 50000);
+  private static final long QUEUE_MAX_BYTES = Long.getLong("pal.queue.maxBytes", 32L * 1024 * 1024);
+  private static final BoundedEventQueue.OverflowPolicy QUEUE_OVERFLOW_POLICY = BoundedEventQueue.OverflowPolicy.valueOf(
+      System.getProperty("pal.queue.overflowPolicy", BoundedEventQueue.OverflowPolicy.DROP_BY_PRIORITY.name()));
+  private static final int SPOOL_SEGMENT_BYTES = 4 * 1024 * 1024;
+  private static final long SPOOL_MAX_BYTES = Long.getLong("pal.spool.maxBytes", 256L * 1024 * 1024);
+  private static final double SPOOL_REPLAY_EVENTS_PER_SECOND = Integer.getInteger("pal.spool.replayEventsPerSecond", 500);
+  private static final int FLUSH_MAX_BATCH_EVENTS = Integer.getInteger("pal.flush.maxBatchEvents", 1000);
+  private static final long FLUSH_MAX_BATCH_BYTES = Long.getLong("pal.flush.maxBatchBytes", 512L * 1024);
+  private static final long FLUSH_MAX_LATENCY_MS = Long.getLong("pal.flush.maxLatencyMs", 5000L);
+  // The largest answer a streamed event holds in memory, about a 1.5 MB zip in base64: when it has to be
+  // queued instead, or when the server doesn't accept chunked messages
+  private static final long STREAM_FALLBACK_MAX_BYTES = Long.getLong("pal.stream.fallbackMaxBytes", 2L * 1024 * 1024);
+  // Every batch is written here before it is sent, and stays until the server accepts it
+  private static final EventSpool spool = new EventSpool(new File(PathManager.getSystemPath(), "pal/spool"),
+      SPOOL_SEGMENT_BYTES, SPOOL_MAX_BYTES, SPOOL_REPLAY_EVENTS_PER_SECOND);
+  private static final PipelineMetrics metrics = new PipelineMetrics()
+      .gauge("ring_depth", eventRing::size);
+  private static final long METRICS_LOG_INTERVAL_MS = Long.getLong("pal.metrics.logIntervalMs", 10L * 60 * 1000);
+  private static long nextMetricsLogMillis = System.currentTimeMillis() + METRICS_LOG_INTERVAL_MS;
+  // Changed under the lock on this class; its size and bytes are also read without it. Lifecycle events
+  // are few and must not be lost, while a few bulk payloads per flush are plenty.
+  private static final BoundedEventQueue pendingEvents = new BoundedEventQueue(QUEUE_MAX_EVENTS, QUEUE_MAX_BYTES,
+      QUEUE_OVERFLOW_POLICY, spool)
+      .configureLane(PacoIntellijEventTypes.Priority.LIFECYCLE, 1000, 1024 * 1024, Integer.MAX_VALUE, Long.MAX_VALUE)
+      .configureLane(PacoIntellijEventTypes.Priority.USER_ACTION, QUEUE_MAX_EVENTS, QUEUE_MAX_BYTES, 5000,
+          4L * 1024 * 1024)
+      .configureLane(PacoIntellijEventTypes.Priority.BULK, 100, 16L * 1024 * 1024, 4, 4L * 1024 * 1024)
+      .withMetrics(metrics);
+  private static final PacoIntellijEventTypes.Priority[] LANES_BY_URGENCY = {
+      PacoIntellijEventTypes.Priority.LIFECYCLE,
+      PacoIntellijEventTypes.Priority.USER_ACTION,
+      PacoIntellijEventTypes.Priority.BULK
+  };
+  private static final long COALESCE_WINDOW_MS = Long.getLong("pal.coalesce.windowMs", 2000L);
+  static final DateTimeFormatter EVENT_TIME_FORMAT = DateTimeFormat.forPattern("yyyy/MM/dd HH:mm:ss.SSSZ");
+  // No activity for this long ends a coding session
+  private static final long CODING_IDLE_GAP_MS = Long.getLong("pal.heartbeat.idleGapMs", 2L * 60 * 1000);
+  private static final CodingHeartbeat heartbeat = new CodingHeartbeat(
+      data -> appendPacoEvent(PacoIntellijEventTypes.EventType.CODING_SESSION, data),
+      TimeUnit.MILLISECONDS.toNanos(CODING_IDLE_GAP_MS));
+  private static final EventCoalescer coalescer = new EventCoalescer(PacoApplicationComponent::queueEvent,
+      COALESCE_WINDOW_MS)
+      .coalesce(PacoIntellijEventTypes.EventType.DOCUMENT_FOCUSED)
+      .coalesce(PacoIntellijEventTypes.EventType.IDE_ACTION, "action_class", "place", "file");
+  private static final EventRingBuffer.SlotConsumer pendingEventCollector = coalescer::add;
+  private static final AtomicLong ringOverflows = new AtomicLong();
+  private static final CaptureGate captureGate = new CaptureGate();
+  private static final EventRatePolicy ratePolicy = EventRatePolicy.withDefaults();
+  private static volatile AdaptiveFlusher flusher;
+  private static final long SHUTDOWN_DEADLINE_MS = Long.getLong("pal.shutdown.deadlineMs", 2000L);
+  private static volatile boolean intakeClosed;
+  // Batches sent and not yet answered
+  private final Set<CompletableFuture<?>> pendingSends = ConcurrentHashMap.newKeySet();
   private MessageBusConnection connection;
 
-  public static String lastFile = null;
-  public static BigDecimal lastTime = new BigDecimal(0);
-  public static final BigDecimal FREQUENCY = new BigDecimal(2l * 60); // max secs between events for continuous coding
   private MyFileEditorManagerListener fileEditorListener;
   private ExternalSystemTaskNotificationListener palTaskListener;
   private TespClient tespClient;
@@ -88,18 +178,41 @@ public class PacoApplicationComponent implements ApplicationComponent {
     return true;
   }
 
-  public static boolean enoughTimePassed() {
-    BigDecimal currentTime = getCurrentTimestamp();
-    return lastTime.add(FREQUENCY).compareTo(currentTime) < 0;
+  /**
+   * Counters and histograms of the event pipeline since startup.
+   */
+  public static PipelineMetrics.Snapshot metricsSnapshot() {
+    return metrics.snapshot();
+  }
+
+  /**
+   * False while the PAL Event Server is paused or overloaded. Listeners check this before collecting
+   * any data for an event.
+   */
+  public static boolean isCapturing() {
+    return !intakeClosed && captureGate.isOpen();
   }
 
-  public static BigDecimal getCurrentTimestamp() {
-    return new BigDecimal(String.valueOf(System.currentTimeMillis() / 1000.0)).setScale(4, BigDecimal.ROUND_HALF_UP);
+  /**
+   * Records a cursor action for the coding heartbeat. Cheap enough to call for every keystroke.
+   */
+  public static void recordCodingActivity(Project project, VirtualFile file) {
+    if (!isCapturing()) {
+      return;
+    }
+    heartbeat.onActivity(project, file);
+    AdaptiveFlusher currentFlusher = flusher;
+    if (currentFlusher != null) {
+      // So the window is reported once it goes idle
+      currentFlusher.onEventPublished();
+    }
   }
 
 
   public void initComponent() {
     userPreferences = new UserPreferences();
+    // Doesn't change while the IDE runs, so ApplicationInfo is only asked once rather than for every event
+    ideVersion = computeIdeVersion();
     initTcpClient();
     setupEventListeners();
     setupQueueProcessor();
@@ -107,54 +220,259 @@ public class PacoApplicationComponent implements ApplicationComponent {
   }
 
   private void initTcpClient() {
-    try {
-      tespClient = new TespClient("127.0.0.1", 31415);
-    } catch (IOException e) {
-      log.warning("Could not connect to PalEventServer: " + e.getMessage());
+    // Connects and reconnects in the background, so startup never waits on the server. A Unix domain
+    // socket avoids the loopback TCP stack when the server provides one.
+    TespTransport transport = new TespTcpTransport(TESP_HOST, TESP_PORT);
+    if (TESP_UNIX_SOCKET_PATH != null && !TESP_UNIX_SOCKET_PATH.isEmpty()) {
+      transport = new TespFallbackTransport(new TespUnixSocketTransport(TESP_UNIX_SOCKET_PATH), transport);
     }
+    tespClient = new TespClient(transport);
+    tespClient.start();
+    final TespClient client = tespClient;
+    metrics.gauge("tesp_reconnects", () -> Math.max(0, client.getConnectionCount() - 1));
   }
 
+  /**
+   * Shuts down in order, within SHUTDOWN_DEADLINE_MS: stops taking events, queues the final ones
+   * directly, sends what it can while still connected, and leaves the rest in the spool for the next
+   * start. No write to the server blocks past the deadline.
+   */
   public void disposeComponent() {
     log.info("Disposing PacoApplicationComponent");
+    final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_DEADLINE_MS);
+    if (tespClient != null) {
+      // Also bounds a send the flusher is still in the middle of
+      tespClient.setWriteDeadline(deadlineNanos);
+    }
+
+    // The open coding session still goes through the ring, so it must be reported before intake stops
+    heartbeat.close();
+    intakeClosed = true;
     try {
       connection.disconnect();
-      if (tespClient != null) {
-        tespClient.close();
-      }
     } catch (Exception e) {
     }
-
+    boolean flusherStopped = false;
     try {
-      scheduledFuture.cancel(true);
+      flusher.close();
+      flusherStopped = flusher.awaitTermination(remainingMillis(deadlineNanos));
     } catch (Exception e) {
     }
-    appendPacoEvent(PacoIntellijEventTypes.EventType.IDE_STOPPED, null);
-    processPacoEventQueue();
+
+    synchronized (PacoApplicationComponent.class) {
+      drainEventRing();
+      coalescer.flush();
+      pendingEvents.add(createPacoEvent(PacoIntellijEventTypes.EventType.IDE_STOPPED, Maps.newHashMap()),
+          PacoIntellijEventTypes.EventType.IDE_STOPPED);
+    }
+
+    if (tespClient != null) {
+      // A flusher still sending would write alongside this thread, so the events are spooled instead
+      if (flusherStopped) {
+        while (!pendingEvents.isEmpty() && remainingMillis(deadlineNanos) > 0 && processPacoEventQueue(true)) {
+        }
+      } else {
+        log.info("The event flusher didn't stop in time, leaving the queued events for the next start");
+      }
+      awaitPendingSends(deadlineNanos);
+      tespClient.close();
+    }
+
+    // Unsent events, and sent ones the server didn't acknowledge in time, are replayed on the next start
+    int persisted = 0;
+    synchronized (PacoApplicationComponent.class) {
+      for (PacoEvent pacoEvent : pendingEvents.takeAll()) {
+        String json = PacoEventUtil.jsonify(pacoEvent);
+        if (json != null && spool.append(json, false) >= 0) {
+          persisted++;
+        }
+      }
+    }
+    spool.force();
+    if (persisted > 0) {
+      log.info("Saved " + persisted + " unsent events for the next start");
+    }
+    log.info("Event pipeline metrics: " + metrics.snapshot());
+  }
+
+  private static long remainingMillis(long deadlineNanos) {
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+  }
+
+  private void awaitPendingSends(long deadlineNanos) {
+    try {
+      CompletableFuture.allOf(pendingSends.toArray(new CompletableFuture<?>[0]))
+          .get(remainingMillis(deadlineNanos), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      log.info(pendingSends.size() + " batches were not acknowledged before shutdown");
+    } catch (InterruptedException | ExecutionException e) {
+      log.warning("Interrupted waiting for batches to be acknowledged: " + e.getMessage());
+    }
   }
 
   public static void appendPacoEvent(final PacoIntellijEventTypes.EventType type, final Map<String, String> data) {
-    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
-      public void run() {
-        PacoEvent event = PacoEventUtil.createEvent();
-        List<Output> outputs = Lists.newArrayList();
-        outputs.add(new Output("type", type.toString()));
-        outputs.add(new Output("apps_used", getIdeVersion()));
-        //TODO detect if we are in a flutter experiment to guard adding this output
-        //outputs.add(new Output("ide", "IntelliJ IDEA"));0
-        if (data != null && data.keySet() != null) {
-          for (String name : data.keySet()) {
-            String value = data.get(name);
-            outputs.add(new Output(name, value));
-          }
-          event.setWhat(outputs);
+    if (!isCapturing()) {
+      return;
+    }
+    // Called on the EDT for most events, so the event itself is only built later by the flush thread
+    if (!eventRing.publish(type, data, System.currentTimeMillis())) {
+      pendingEvents.recordDrop(type);
+      if (ringOverflows.getAndIncrement() % EVENT_RING_CAPACITY == 0) {
+        log.warning("Event ring is full, dropped " + type + " event");
+      }
+      return;
+    }
+    metrics.recordPublished();
+    AdaptiveFlusher currentFlusher = flusher;
+    if (currentFlusher != null) {
+      currentFlusher.onEventPublished();
+    }
+  }
+
+  private static PacoEvent createPacoEvent(PacoIntellijEventTypes.EventType type, Map<String, String> data) {
+    return createPacoEvent(type, data, System.currentTimeMillis());
+  }
+
+  private static PacoEvent createPacoEvent(PacoIntellijEventTypes.EventType type, Map<String, String> data,
+                                           long timeMillis) {
+    PacoEvent event = PacoEventUtil.createEvent();
+    event.setResponseTimeMillis(timeMillis);
+    List<Output> outputs = Lists.newArrayList();
+    outputs.add(new Output("type", type.toString()));
+    outputs.add(new Output("apps_used", getIdeVersion()));
+    ratePolicy.addSampleRate(type, outputs);
+    //TODO detect if we are in a flutter experiment to guard adding this output
+    //outputs.add(new Output("ide", "IntelliJ IDEA"));0
+    if (data != null && data.keySet() != null) {
+      for (String name : data.keySet()) {
+        String value = data.get(name);
+        outputs.add(new Output(name, value));
+      }
+      event.setWhat(outputs);
+    }
+    return event;
+  }
+
+  public interface AnswerWriter {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Sends an event with an answer that is too large to hold in memory, e.g. a project snapshot,
+   * straight to the PAL Event Server in chunks. {@code answer} must only write characters that need
+   * no escaping in a JSON string, such as base64. Blocks until the server has answered.
+   *
+   * A server without chunked messages gets the event in one request, so it is streamed only if the
+   * answer is at most STREAM_FALLBACK_MAX_BYTES. If it can't be streamed, e.g. while disconnected, or
+   * is lost on the way, the event is queued like any other, and so spooled until it is sent. It keeps its answer only if that is
+   * at most STREAM_FALLBACK_MAX_BYTES; {@code answer} may be written a second time for this. Returns
+   * false if events aren't being captured, in which case nothing was recorded.
+   */
+  public boolean sendStreamedPacoEvent(PacoIntellijEventTypes.EventType type, Map<String, String> data,
+                                       String answerName, AnswerWriter answer) {
+    if (!isCapturing()) {
+      return false;
+    }
+    Map<String, String> eventData = data != null ? Maps.newHashMap(data) : Maps.<String, String>newHashMap();
+    if (!tespClient.isConnected() || !streamPacoEvent(type, eventData, answerName, answer)) {
+      queueStreamedPacoEvent(type, eventData, answerName, answer);
+    }
+    return true;
+  }
+
+  // Returns false if the event wasn't sent, or may be accepted if sent again
+  private boolean streamPacoEvent(PacoIntellijEventTypes.EventType type, Map<String, String> data,
+                                  String answerName, AnswerWriter answer) {
+    // The answer is spliced into the JSON in place of a placeholder
+    String placeholder = "streamed-answer-" + UUID.randomUUID();
+    Map<String, String> dataWithPlaceholder = Maps.newHashMap(data);
+    dataWithPlaceholder.put(answerName, placeholder);
+    String json = PacoEventUtil.jsonify(Collections.singletonList(createPacoEvent(type, dataWithPlaceholder)));
+    if (json == null) {
+      return false;
+    }
+    int answerStart = json.indexOf(placeholder);
+
+    TespChunkedOutputStream out = null;
+    try {
+      out = tespClient.openAddEventStream((int) Math.min(Integer.MAX_VALUE, STREAM_FALLBACK_MAX_BYTES));
+      out.write(json.substring(0, answerStart).getBytes(StandardCharsets.UTF_8));
+      // Keep the writer from closing the stream, which would send the last chunk early
+      final OutputStream chunks = out;
+      answer.writeTo(new FilterOutputStream(chunks) {
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          chunks.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+          flush();
         }
-        pacoEventsQueue.add(event);
+      });
+      out.write(json.substring(answerStart + placeholder.length()).getBytes(StandardCharsets.UTF_8));
+      out.close();
+      // Waited for, so a snapshot lost with the connection can be queued. The client's response timeout
+      // bounds the wait.
+      TespResponse response = out.getResponse().get();
+      handleAddEventResponse(response, 1);
+      // The server also refuses a message whose chunks came too slowly, e.g. from a slow disk, which
+      // queueing doesn't depend on
+      return !isRetryable(response) && !(response instanceof TespResponseInvalidRequest);
+    } catch (InterruptedException e) {
+      // It was sent and may yet be accepted, so it isn't queued a second time
+      Thread.currentThread().interrupt();
+      log.warning("Interrupted waiting for the answer to a streamed " + type + " event");
+      return true;
+    } catch (ExecutionException e) {
+      log.warning("Could not stream " + type + " event to PAL Event Server: " + e.getCause());
+      return false;
+    } catch (IOException e) {
+      log.warning("Could not stream " + type + " event to PAL Event Server: " + e.getMessage());
+      if (out != null) {
+        out.abort();
       }
-    });
+      return false;
+    }
+  }
+
+  private static void queueStreamedPacoEvent(PacoIntellijEventTypes.EventType type, Map<String, String> data,
+                                             String answerName, AnswerWriter answer) {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try {
+      answer.writeTo(new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          if (buffer.size() + len > STREAM_FALLBACK_MAX_BYTES) {
+            throw new IOException("the answer is larger than " + STREAM_FALLBACK_MAX_BYTES + " bytes");
+          }
+          buffer.write(b, off, len);
+        }
+      });
+      data.put(answerName, new String(buffer.toByteArray(), StandardCharsets.US_ASCII));
+    } catch (IOException e) {
+      log.warning("Queued " + type + " event without its " + answerName + ": " + e.getMessage());
+    }
+    appendPacoEvent(type, data);
   }
 
   @NotNull
   private static String getIdeVersion() {
+    String version = ideVersion;
+    if (version == null) {
+      version = computeIdeVersion();
+      ideVersion = version;
+    }
+    return version;
+  }
+
+  @NotNull
+  private static String computeIdeVersion() {
     String versionName = "unknown version name";
     String buildAsStr = "unkknown build label";
     ApplicationInfo instance = ApplicationInfo.getInstance();
@@ -242,57 +560,347 @@ public class PacoApplicationComponent implements ApplicationComponent {
   }
 
   private void setupQueueProcessor() {
-    final Runnable handler = new Runnable() {
-      public void run() {
-        processPacoEventQueue();
+    flusher = new AdaptiveFlusher(new AdaptiveFlusher.Source() {
+      public void collect() {
+        drainEventRing();
       }
-    };
-    long delay = queueTimeoutSeconds;
-    scheduledFuture = scheduler.scheduleAtFixedRate(handler, delay, delay, java.util.concurrent.TimeUnit.SECONDS);
+
+      public boolean hasUncollected() {
+        return !eventRing.isEmpty();
+      }
+
+      public int pendingEvents() {
+        return pendingEvents.size() + (coalescer.isHolding() ? 1 : 0) + (heartbeat.isActive() ? 1 : 0)
+            + (spool.hasReplayable() ? 1 : 0);
+      }
+
+      public long pendingBytes() {
+        return pendingEvents.bytes();
+      }
+
+      public long oldestPendingMillis() {
+        long oldestQueuedMillis;
+        synchronized (PacoApplicationComponent.class) {
+          oldestQueuedMillis = pendingEvents.oldestTimeMillis();
+        }
+        if (!spool.hasReplayable()) {
+          return oldestQueuedMillis;
+        }
+        // Spooled events are due as soon as the replay rate allows
+        long replayDueMillis = System.currentTimeMillis() + spool.millisUntilReplay() - FLUSH_MAX_LATENCY_MS;
+        return Math.min(oldestQueuedMillis, replayDueMillis);
+      }
+
+      public boolean flush() {
+        return processPacoEventQueue(false);
+      }
+    }, FLUSH_MAX_BATCH_EVENTS, FLUSH_MAX_BATCH_BYTES, FLUSH_MAX_LATENCY_MS, EVENT_DRAIN_INTERVAL_MS,
+        FLUSH_RETRY_INTERVAL_MS);
+    flusher.start();
   }
 
-  private void processPacoEventQueue() {
-    if (tespClient == null) {
-      initTcpClient();
+  private static synchronized void drainEventRing() {
+    while (eventRing.drain(pendingEventCollector, EVENT_RING_CAPACITY) > 0) {
     }
-    if (tespClient == null) {
-      log.severe("cannot connect to PAL Event Server");
+    coalescer.flushExpired(System.currentTimeMillis());
+    // Ending a session publishes its summary, which is collected on the next pass
+    heartbeat.closeIfIdle();
+  }
+
+  private static void queueEvent(PacoIntellijEventTypes.EventType type, Map<String, String> data,
+                                 long firstTimeMillis, long lastTimeMillis, int repeatCount) {
+    // Limited once runs are coalesced, so a key held down takes one token rather than one per repeat
+    EventRatePolicy.Decision decision = ratePolicy.admit(type);
+    if (decision != EventRatePolicy.Decision.ADMIT) {
+      // Unsampled events are accounted for by the sample rate on the ones that are sent
+      if (decision == EventRatePolicy.Decision.RATE_LIMITED) {
+        pendingEvents.recordDrops(type, repeatCount);
+      }
       return;
     }
-    // get single event from queue
-    ArrayList<PacoEvent> pacoEvents = new ArrayList<PacoEvent>();
+    if (repeatCount > 1 && data != null) {
+      // The publisher's map, which it may still hold, so it is left alone
+      data = Maps.newHashMap(data);
+      data.put("repeat_count", Integer.toString(repeatCount));
+      data.put("first_timestamp", EVENT_TIME_FORMAT.print(firstTimeMillis));
+      data.put("last_timestamp", EVENT_TIME_FORMAT.print(lastTimeMillis));
+    }
+    pendingEvents.add(createPacoEvent(type, data, firstTimeMillis), type);
+  }
 
-    while (true) {
-      PacoEvent pacoEvent = pacoEventsQueue.poll();
-      if (pacoEvent == null) {
-        break;
+  // Returns false if nothing was sent. While shutting down it neither backs off nor replays the spool.
+  private boolean processPacoEventQueue(boolean shuttingDown) {
+    if (!shuttingDown && !captureGate.shouldFlush()) {
+      // The server is struggling, so batches go out less often
+      return false;
+    }
+    if (!tespClient.isConnected()) {
+      // Leave the events queued until the client has reconnected
+      log.fine("Not connected to PAL Event Server, holding queued events");
+      return false;
+    }
+    // Spooled events are older than the queued ones, but a long backlog is replayed at a limited rate,
+    // so the newest events aren't held back behind it
+    if (!shuttingDown) {
+      List<EventSpool.Record> replay = spool.takeReplay(FLUSH_MAX_BATCH_EVENTS, FLUSH_MAX_BATCH_BYTES);
+      if (!replay.isEmpty()) {
+        sendSpooledEvents(replay);
       }
-      pacoEvents.add(pacoEvent);
     }
-    if (!pacoEvents.isEmpty()) {
-      sendPacoEvent(pacoEvents);
+    synchronized (PacoApplicationComponent.class) {
+      drainEventRing();
+      Map<PacoIntellijEventTypes.EventType, Long> dropCounts = pendingEvents.takeDropCounts();
+      if (!dropCounts.isEmpty()) {
+        pendingEvents.add(createLossEvent(dropCounts), PacoIntellijEventTypes.EventType.EVENTS_DROPPED);
+      }
+      pendingEvents.startFlush();
+      metrics.recordQueueDepth(pendingEvents.size());
     }
+    // Lanes are sent most urgent first and never share a frame, so a large snapshot can't hold up
+    // small time-sensitive events. Frames are capped in size, so a lane may take several.
+    for (PacoIntellijEventTypes.Priority lane : LANES_BY_URGENCY) {
+      while (true) {
+        ArrayList<PacoEvent> pacoEvents;
+        synchronized (PacoApplicationComponent.class) {
+          pacoEvents = new ArrayList<PacoEvent>(pendingEvents.take(lane, FLUSH_MAX_BATCH_EVENTS, FLUSH_MAX_BATCH_BYTES));
+        }
+        if (pacoEvents.isEmpty()) {
+          break;
+        }
+        sendPacoEvent(pacoEvents);
+      }
+    }
+    logMetricsIfDue();
+    return true;
+  }
+
+  private static void logMetricsIfDue() {
+    long now = System.currentTimeMillis();
+    if (now < nextMetricsLogMillis) {
+      return;
+    }
+    nextMetricsLogMillis = now + METRICS_LOG_INTERVAL_MS;
+    log.info("Event pipeline metrics: " + metrics.snapshot());
+  }
 
+  // Reports how many events of each type were dropped since the last report
+  private static PacoEvent createLossEvent(Map<PacoIntellijEventTypes.EventType, Long> dropCounts) {
+    Map<String, String> data = Maps.newHashMap();
+    long total = 0;
+    for (Map.Entry<PacoIntellijEventTypes.EventType, Long> count : dropCounts.entrySet()) {
+      data.put("dropped_" + count.getKey(), count.getValue().toString());
+      total += count.getValue();
+    }
+    data.put("dropped_events", Long.toString(total));
+    log.warning("Dropped " + total + " events: " + dropCounts);
+    return createPacoEvent(PacoIntellijEventTypes.EventType.EVENTS_DROPPED, data);
   }
 
   private void sendPacoEvent(ArrayList<PacoEvent> pacoEvents) {
-    String jsonEvents = PacoEventUtil.jsonify(pacoEvents);
-    //    log.info("Paco Event to be sent:\n" + jsonEvents);
-
-    final TespRequestAddEvent event = TespRequestAddEvent.withPayload(jsonEvents);
+    TespFrameOutputStream frame = null;
+    // Events that are sent in the binary encoding, if the server supports it
+    List<PacoEvent> binaryEvents = null;
+    int protocolVersion = 0;
+    try {
+      protocolVersion = tespClient.getProtocolVersion();
+      if (protocolVersion >= TespRequestAddEventBinary.minProtocolVersion) {
+        binaryEvents = new ArrayList<PacoEvent>(pacoEvents.size());
+      } else {
+        frame = tespClient.openAddEventFrame();
+      }
+    } catch (IOException e) {
+      // Spooled anyway, to be replayed once the client has reconnected
+      log.warning("Got exception sending pacoEvents to tcpClient: " + e.getMessage());
+    }
+    boolean sending = frame != null || binaryEvents != null;
+    // Each event is serialized on its own so it can be spooled, and for JSON frames copied from there
+    // into the frame, which holds them as one JSON array. The spool keeps JSON either way, so it can
+    // be replayed to any server.
+    JsonBuffer json = new JsonBuffer();
+    long[] spoolIds = new long[pacoEvents.size()];
+    int count = 0;
+    long serializationNanos = 0;
+    try {
+      if (frame != null) {
+        frame.write('[');
+      }
+      for (PacoEvent pacoEvent : pacoEvents) {
+        json.reset();
+        long start = System.nanoTime();
+        boolean serialized = PacoEventUtil.writeJson(pacoEvent, json.writer);
+        json.writer.flush();
+        serializationNanos += System.nanoTime() - start;
+        if (!serialized) {
+          continue;
+        }
+        spoolIds[count] = spool.append(json.array(), 0, json.size(), sending);
+        if (binaryEvents != null) {
+          binaryEvents.add(pacoEvent);
+        } else if (frame != null) {
+          if (count > 0) {
+            frame.write(',');
+          }
+          json.writeTo(frame);
+        }
+        count++;
+      }
+      if (frame != null) {
+        frame.write(']');
+      }
+    } catch (IOException e) {
+      log.warning("Could not encode pacoEvents: " + e.getMessage());
+      if (frame != null) {
+        frame.abort();
+      }
+      spool.release(Arrays.copyOf(spoolIds, count));
+      return;
+    }
+    TespRequest binaryRequest = null;
+    if (binaryEvents != null && protocolVersion >= TespRequestAddEventSession.minProtocolVersion) {
+      // Encoded by the client as it is written, relative to the batches before it on the connection,
+      // so the encoding counts towards the write time
+      binaryRequest = TespRequestAddEventSession.withPayload(binaryEvents);
+    } else if (binaryEvents != null) {
+      long start = System.nanoTime();
+      binaryRequest = TespRequestAddEventBinary.withPayload(binaryEvents);
+      // Encodes it
+      binaryRequest.payloadSize();
+      serializationNanos += System.nanoTime() - start;
+    }
+    metrics.recordSerialization(serializationNanos);
+    long now = System.currentTimeMillis();
+    for (PacoEvent pacoEvent : pacoEvents) {
+      if (pacoEvent.getResponseTimeMillis() != Long.MIN_VALUE) {
+        metrics.recordEnqueueToSend(now - pacoEvent.getResponseTimeMillis());
+      }
+    }
+    if (binaryRequest != null) {
+      sendEvents(binaryRequest, count, -1, Arrays.copyOf(spoolIds, count));
+    } else if (frame != null) {
+      sendFrame(frame, count, Arrays.copyOf(spoolIds, count));
+    }
+  }
 
+  private void sendSpooledEvents(List<EventSpool.Record> records) {
+    long[] spoolIds = new long[records.size()];
+    for (int i = 0; i < records.size(); i++) {
+      spoolIds[i] = records.get(i).id;
+    }
+    TespFrameOutputStream frame = null;
     try {
-      if (tespClient == null) {
-        initTcpClient();
+      frame = tespClient.openAddEventFrame();
+      frame.write('[');
+      for (int i = 0; i < records.size(); i++) {
+        if (i > 0) {
+          frame.write(',');
+        }
+        frame.write(records.get(i).json);
       }
-      if (tespClient == null) {
-        log.severe("cannot connect to PAL Event Server");
-        return;
+      frame.write(']');
+    } catch (IOException e) {
+      log.warning("Got exception sending pacoEvents to tcpClient: " + e.getMessage());
+      if (frame != null) {
+        frame.abort();
       }
-      tespClient.send(event);
+      spool.release(spoolIds);
+      return;
+    }
+    sendFrame(frame, records.size(), spoolIds);
+  }
+
+  private void sendFrame(TespFrameOutputStream frame, int eventCount, long[] spoolIds) {
+    TespRequestEncoded event;
+    try {
+      event = frame.finish();
+    } catch (IOException e) {
+      log.warning("Could not encode pacoEvents: " + e.getMessage());
+      spool.release(spoolIds);
+      return;
+    }
+    sendEvents(event, eventCount, frame.getBytesWritten(), spoolIds);
+  }
+
+  // payloadBytes is -1 for the size of the encoded payload, which session requests only have once written
+  private void sendEvents(TespRequest event, int eventCount, long payloadBytes, final long[] spoolIds) {
+    try {
+      // Don't wait for the server here, so a slow server doesn't hold up the next flush
+      final long writeStart = System.nanoTime();
+      final CompletableFuture<TespResponse> pendingResponse = tespClient.sendAsync(event);
+      final long writeNanos = System.nanoTime() - writeStart;
+      metrics.recordBatch(eventCount, payloadBytes < 0 ? event.payloadSize() : payloadBytes, writeNanos);
+      final CompletableFuture<?> sent = pendingResponse.thenAccept(response -> {
+        handleAddEventResponse(response, spoolIds.length);
+        if (response instanceof TespResponseSuccess) {
+          spool.ack(spoolIds);
+        } else if (isRetryable(response)) {
+          // Stays in the spool, to be replayed once the server is reachable and keeping up again
+          spool.release(spoolIds);
+        } else {
+          // Paused, or refused for good, so a replay would only get the same answer
+          spool.ack(spoolIds);
+          metrics.recordRejected(spoolIds.length);
+        }
+      });
+      pendingSends.add(sent);
+      sent.whenComplete((result, error) -> pendingSends.remove(sent));
     } catch (IOException e) {
       log.warning("Got exception sending pacoEvents to tcpClient: " + e.getMessage());
+      spool.release(spoolIds);
+    }
+  }
+
+  // Lets the serialized event be spooled from the buffer itself, without copying it out first
+  private static class JsonBuffer extends ByteArrayOutputStream {
+    // Encodes into this buffer; flushed after every event
+    final Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+
+    JsonBuffer() {
+      super(1024);
+    }
+
+    byte[] array() {
+      return buf;
+    }
+  }
+
+  private static void handleAddEventResponse(TespResponse response, int eventCount) {
+    if (response instanceof TespResponseSuccess) {
+      captureGate.onAccepted();
+    } else if (response instanceof TespResponsePaused) {
+      log.info("PAL Event Server is paused, " + eventCount + " events were not recorded");
+      captureGate.onPaused();
+    } else if (response instanceof TespResponseError) {
+      TespResponseError error = (TespResponseError) response;
+      log.warning("PAL Event Server could not add events: " + error.getPayload());
+      if (isOverloadError(error.getErrorCode())) {
+        captureGate.onOverloaded();
+      }
+    } else {
+      log.warning("Unexpected response from PAL Event Server: " + response.getClass().getSimpleName());
+    }
+  }
+
+  // Whether a batch that got this answer may be accepted if sent again: it was lost with the connection,
+  // or the server didn't answer in time. The server answers server-unknown to a request it failed to
+  // handle, which a replay of the same batch would only fail again, and the spool has no retry limit.
+  private static boolean isRetryable(TespResponse response) {
+    if (!(response instanceof TespResponseError)) {
+      return false;
     }
+    String errorCode = ((TespResponseError) response).getErrorCode();
+    return TespResponseError.tespClientErrorLostConnection.equals(errorCode)
+        || TespResponseError.tespClientErrorServerCloseEarly.equals(errorCode)
+        || TespResponseError.tespClientErrorDecoding.equals(errorCode)
+        || TespResponseError.tespClientErrorResponseTimeout.equals(errorCode)
+        || TespResponseError.tespClientErrorChunkTimeout.equals(errorCode);
+  }
+
+  // Errors that mean the server is struggling: it didn't keep up with what it was sent. The server answers
+  // server-unknown to a single request it failed to handle, which says nothing about its load, and
+  // connection errors are left to the client's reconnects.
+  private static boolean isOverloadError(String errorCode) {
+    return TespResponseError.tespClientErrorResponseTimeout.equals(errorCode)
+        || TespResponseError.tespClientErrorChunkTimeout.equals(errorCode);
   }
 
   private static void sendPacoEventDirectly(final ArrayList<PacoEvent> pacoEvents) {
@@ -23,6 +23,30 @@ public class PacoIntellijEventTypes {
     COPY_ACTION, CUT_ACTION, PASTE_ACTION, UNDO_ACTION, REDO_ACTION,
     IDE_STARTED, IDE_STOPPED,
     LAUNCH,
-    PROJECT_OPENED, IDE_ACTION, PROJECT_COMPILATION, PROJECT_SNAPSHOT, DIFF, PROJECT_CLOSED
+    PROJECT_OPENED, IDE_ACTION, PROJECT_COMPILATION, PROJECT_SNAPSHOT, DIFF, PROJECT_CLOSED,
+    EVENTS_DROPPED, CODING_SESSION
+  }
+
+  // In increasing order of importance
+  public enum Priority {
+    BULK, USER_ACTION, LIFECYCLE
+  }
+
+  public static Priority priorityOf(EventType type) {
+    switch (type) {
+      case IDE_STARTED:
+      case IDE_STOPPED:
+      case PROJECT_OPENED:
+      case PROJECT_CLOSED:
+      case EVENTS_DROPPED:
+        return Priority.LIFECYCLE;
+      // Events that may carry whole files
+      case DOCUMENT_CREATED:
+      case PROJECT_SNAPSHOT:
+      case DIFF:
+        return Priority.BULK;
+      default:
+        return Priority.USER_ACTION;
+    }
   }
 }
@@ -40,6 +40,7 @@ import org.jetbrains.annotations.NotNull;
 import org.joda.time.DateTime;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
@@ -85,6 +86,10 @@ public class PacoProjectComponent implements ProjectComponent {
   private void _createSnapshotOfFiles(Project project, PacoApplicationComponent pacoAppComponent) {
     LabelImpl label = createVersionLabel(project);
     pacoAppComponent.store(project, label);
+    if (!PacoApplicationComponent.isCapturing()) {
+      // Building the snapshot is expensive, and the server isn't taking events
+      return;
+    }
 
     VirtualFile[] contentRoots = ProjectRootManager.getInstance(project).getContentRootsFromAllModules();
     List<VirtualFile> projectFiles = new ArrayList<>();
@@ -154,23 +159,25 @@ public class PacoProjectComponent implements ProjectComponent {
     }
     Map<String, String> data = Maps.newHashMap();
     data.put("snapshot_file", zipFile.getAbsolutePath());
-    if (zipFile.length() <= 1000000 /* 1mb max*/) {
-      String base64EncodedZipFile = Base64.getEncoder().encodeToString(getBytesOfZip(zipFile));
-      if (base64EncodedZipFile != null) {
-        data.put("base_snapshot_contents", "zipfile===" + base64EncodedZipFile);
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      public void run() {
+        sendSnapshot(zipFile, data, pacoAppComponent);
       }
-    }
-    pacoAppComponent.appendPacoEvent(PacoIntellijEventTypes.EventType.PROJECT_SNAPSHOT, data);
+    });
     project.save(); // TODO - do I need to do this?
   }
 
-  private byte[] getBytesOfZip(File zipFile) {
-    try {
-      return java.nio.file.Files.readAllBytes(zipFile.toPath());
-    } catch (IOException e) {
-      e.printStackTrace();
-      return null;
-    }
+  private void sendSnapshot(File zipFile, Map<String, String> data, PacoApplicationComponent pacoAppComponent) {
+    // Streamed in chunks, so a server that accepts chunked messages gets a snapshot of any size without it
+    // being held in memory. Otherwise, or if it can't be streamed, the contents are only sent if they are
+    // small, as they have to be held in memory.
+    pacoAppComponent.sendStreamedPacoEvent(PacoIntellijEventTypes.EventType.PROJECT_SNAPSHOT, data,
+        "base_snapshot_contents", out -> {
+          out.write("zipfile===".getBytes(StandardCharsets.US_ASCII));
+          try (OutputStream base64 = Base64.getEncoder().wrap(out)) {
+            java.nio.file.Files.copy(zipFile.toPath(), base64);
+          }
+        });
   }
 
   private File createZipFile(String moduleName, File localStorage) {
@@ -298,6 +305,9 @@ public class PacoProjectComponent implements ProjectComponent {
     connection.subscribe(CompilerTopics.COMPILATION_STATUS, new CompilationStatusListener() {
       @Override
       public void compilationFinished(boolean aborted, int errors, int warnings, CompileContext compileContext) {
+        if (!PacoApplicationComponent.isCapturing()) {
+          return;
+        }
         PacoApplicationComponent pacoAppComponent = PacoApplicationComponent.instance();
 
         Map<String, String> data = Maps.newHashMap();
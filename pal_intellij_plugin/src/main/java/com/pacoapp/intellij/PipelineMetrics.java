@@ -0,0 +1,157 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and histograms for the event pipeline, from capture to the PAL Event Server, so flush and
+ * batch settings can be tuned from data. Everything recorded on the capture path is a lock-free
+ * counter update; histograms are only recorded by the flush thread.
+ *
+ * Values that already exist elsewhere, like the number of reconnects, are registered as gauges and
+ * read when a snapshot is taken.
+ */
+public class PipelineMetrics {
+  private final LongAdder published = new LongAdder();
+  private final LongAdder sentEvents = new LongAdder();
+  private final LongAdder sentBatches = new LongAdder();
+  private final LongAdder[] drops = new LongAdder[PacoIntellijEventTypes.EventType.values().length];
+  // Sent, but dropped because the server was paused or refused them. Their types are not known, as
+  // replayed events are only held as JSON.
+  private final LongAdder rejected = new LongAdder();
+  // From the time of the event to its batch being written
+  private final LatencyHistogram enqueueToSendMillis = new LatencyHistogram();
+  // Queued events at the start of each flush
+  private final LatencyHistogram queueDepth = new LatencyHistogram();
+  private final LatencyHistogram batchEvents = new LatencyHistogram();
+  private final LatencyHistogram batchBytes = new LatencyHistogram();
+  // Per batch
+  private final LatencyHistogram serializeMicros = new LatencyHistogram();
+  private final LatencyHistogram writeMicros = new LatencyHistogram();
+  private final Map<String, LongSupplier> gauges = new LinkedHashMap<String, LongSupplier>();
+
+  public PipelineMetrics() {
+    for (int i = 0; i < drops.length; i++) {
+      drops[i] = new LongAdder();
+    }
+  }
+
+  public synchronized PipelineMetrics gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+    return this;
+  }
+
+  public void recordPublished() {
+    published.increment();
+  }
+
+  public void recordDrop(PacoIntellijEventTypes.EventType type) {
+    drops[type.ordinal()].increment();
+  }
+
+  public void recordDrops(PacoIntellijEventTypes.EventType type, int count) {
+    drops[type.ordinal()].add(count);
+  }
+
+  public void recordRejected(int events) {
+    rejected.add(events);
+  }
+
+  public void recordQueueDepth(int events) {
+    queueDepth.record(events);
+  }
+
+  public void recordEnqueueToSend(long millis) {
+    enqueueToSendMillis.record(millis);
+  }
+
+  public void recordSerialization(long nanos) {
+    serializeMicros.record(nanos / 1000);
+  }
+
+  public void recordBatch(int events, long bytes, long writeNanos) {
+    sentEvents.add(events);
+    sentBatches.increment();
+    batchEvents.record(events);
+    batchBytes.record(bytes);
+    writeMicros.record(writeNanos / 1000);
+  }
+
+  public Snapshot snapshot() {
+    Map<PacoIntellijEventTypes.EventType, Long> dropCounts =
+        new EnumMap<PacoIntellijEventTypes.EventType, Long>(PacoIntellijEventTypes.EventType.class);
+    for (PacoIntellijEventTypes.EventType type : PacoIntellijEventTypes.EventType.values()) {
+      long count = drops[type.ordinal()].sum();
+      if (count > 0) {
+        dropCounts.put(type, count);
+      }
+    }
+    Map<String, Long> gaugeValues = new LinkedHashMap<String, Long>();
+    synchronized (this) {
+      for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+        gaugeValues.put(gauge.getKey(), gauge.getValue().getAsLong());
+      }
+    }
+    return new Snapshot(this, dropCounts, gaugeValues);
+  }
+
+  public static class Snapshot {
+    public final long published;
+    public final long sentEvents;
+    public final long sentBatches;
+    public final Map<PacoIntellijEventTypes.EventType, Long> drops;
+    public final long rejected;
+    public final LatencyHistogram.Snapshot enqueueToSendMillis;
+    public final LatencyHistogram.Snapshot queueDepth;
+    public final LatencyHistogram.Snapshot batchEvents;
+    public final LatencyHistogram.Snapshot batchBytes;
+    public final LatencyHistogram.Snapshot serializeMicros;
+    public final LatencyHistogram.Snapshot writeMicros;
+    public final Map<String, Long> gauges;
+
+    Snapshot(PipelineMetrics metrics, Map<PacoIntellijEventTypes.EventType, Long> drops, Map<String, Long> gauges) {
+      this.published = metrics.published.sum();
+      this.sentEvents = metrics.sentEvents.sum();
+      this.sentBatches = metrics.sentBatches.sum();
+      this.drops = drops;
+      this.rejected = metrics.rejected.sum();
+      this.enqueueToSendMillis = metrics.enqueueToSendMillis.snapshot();
+      this.queueDepth = metrics.queueDepth.snapshot();
+      this.batchEvents = metrics.batchEvents.snapshot();
+      this.batchBytes = metrics.batchBytes.snapshot();
+      this.serializeMicros = metrics.serializeMicros.snapshot();
+      this.writeMicros = metrics.writeMicros.snapshot();
+      this.gauges = gauges;
+    }
+
+    @Override
+    public String toString() {
+      return "published=" + published + " sent=" + sentEvents + " in " + sentBatches + " batches, drops=" + drops
+          + ", rejected=" + rejected + ", " + gauges
+          + "\n  enqueue to send (ms): " + enqueueToSendMillis
+          + "\n  queue depth: " + queueDepth
+          + "\n  batch events: " + batchEvents
+          + "\n  batch bytes: " + batchBytes
+          + "\n  serialization (us): " + serializeMicros
+          + "\n  TESP write (us): " + writeMicros;
+    }
+  }
+}
@@ -25,6 +25,9 @@ public class SaveListener extends FileDocumentManagerAdapter {
 
   @Override
   public void beforeDocumentSaving(Document document) {
+    if (!PacoApplicationComponent.isCapturing()) {
+      return;
+    }
     VirtualFile file = FileDocumentManager.getInstance().getFile(document);
     if (PacoApplicationComponent.shouldLogFile(file)) {
       HashMap<String, String> data = FileListener.getDataMapWithFileAdded(file);
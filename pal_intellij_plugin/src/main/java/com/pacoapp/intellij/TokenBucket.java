@@ -0,0 +1,61 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket: tokens accrue at a steady rate up to a burst capacity, and each unit of work takes
+ * one.
+ */
+public class TokenBucket {
+  private final double tokensPerNano;
+  private final double capacity;
+  private double tokens;
+  private long lastRefillNanos = System.nanoTime();
+
+  public TokenBucket(double tokensPerSecond, double capacity) {
+    this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.capacity = capacity;
+    this.tokens = capacity;
+  }
+
+  public synchronized boolean tryTake() {
+    refill();
+    if (tokens < 1) {
+      return false;
+    }
+    tokens--;
+    return true;
+  }
+
+  /**
+   * How long until a token is available, 0 if one is now.
+   */
+  public synchronized long millisUntilAvailable() {
+    refill();
+    if (tokens >= 1) {
+      return 0;
+    }
+    return TimeUnit.NANOSECONDS.toMillis((long) Math.ceil((1 - tokens) / tokensPerNano)) + 1;
+  }
+
+  private void refill() {
+    final long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+    lastRefillNanos = now;
+  }
+}
@@ -78,6 +78,9 @@ public class PacoBeforeRunTaskProvider extends BeforeRunTaskProvider<PacoBeforeR
 
   @Override
   public boolean executeTask(DataContext context, final RunConfiguration configuration, ExecutionEnvironment env, PacoBeforeRunTask task) {
+    if (!PacoApplicationComponent.isCapturing()) {
+      return true;
+    }
     try {
       String runTypeName = ((RunnerAndConfigurationSettingsImpl) env.getRunnerAndConfigurationSettings()).getType().getDisplayName();
 
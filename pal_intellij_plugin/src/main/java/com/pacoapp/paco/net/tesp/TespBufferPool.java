@@ -0,0 +1,71 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct buffers used for encoding outgoing payloads. Direct buffers are
+ * expensive to allocate and are written to a channel without an extra copy, so they are kept around
+ * and reused. At most {@code maxRetained} idle buffers are held; the rest are left to the GC.
+ */
+public class TespBufferPool {
+    private static final int defaultBufferSize = 64 * 1024;
+    private static final int defaultMaxRetained = 32;
+
+    private static final TespBufferPool defaultPool = new TespBufferPool(defaultBufferSize, defaultMaxRetained);
+
+    private final int bufferSize;
+    private final int maxRetained;
+    private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    public TespBufferPool(int bufferSize, int maxRetained) {
+        this.bufferSize = bufferSize;
+        this.maxRetained = maxRetained;
+    }
+
+    public static TespBufferPool getDefault() {
+        return defaultPool;
+    }
+
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        idleCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (!isPooled(buffer)) {
+            return;
+        }
+        if (idleCount.incrementAndGet() <= maxRetained) {
+            idle.offer(buffer);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    public boolean isPooled(ByteBuffer buffer) {
+        return buffer.isDirect() && buffer.capacity() == bufferSize;
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.paco.net.tesp;
+
+import com.pacoapp.paco.net.tesp.message.TespMessage;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestChunk;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembles chunked messages on the receiving side of a connection. A message whose next chunk
+ * doesn't arrive within the chunk timeout is discarded; so are chunks that don't belong to a started
+ * message. Only an end chunk gets an answer, so only a failed end chunk is reported.
+ */
+public class TespChunkAssembler {
+    private final long chunkTimeoutNanos;
+
+    private ByteArrayOutputStream data;
+    private int messageCode;
+    private long lastChunkNanos;
+
+    public TespChunkAssembler(int chunkTimeoutMs) {
+        this.chunkTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(chunkTimeoutMs);
+    }
+
+    /**
+     * Returns the assembled message if {@code chunk} completes one, and null otherwise.
+     */
+    public TespMessage add(TespRequestChunk chunk) throws TespDecodingException {
+        final long now = System.nanoTime();
+        if (chunk.isStart()) {
+            data = new ByteArrayOutputStream();
+            messageCode = chunk.getMessageCode();
+        } else if (data != null && now - lastChunkNanos > chunkTimeoutNanos) {
+            data = null;
+        }
+        if (data == null) {
+            if (chunk.isEnd()) {
+                throw new TespDecodingException("end chunk without a started message, or the message timed out.");
+            }
+            return null;
+        }
+        final byte[] bytes = chunk.getData();
+        data.write(bytes, 0, bytes.length);
+        lastChunkNanos = now;
+        if (!chunk.isEnd()) {
+            return null;
+        }
+
+        final byte[] payload = data.toByteArray();
+        data = null;
+        try {
+            return TespMessage.fromCode(messageCode, payload);
+        } catch (IllegalArgumentException e) {
+            throw new TespDecodingException("undefined message code: " + Integer.toHexString(messageCode) + ".");
+        } catch (RuntimeException e) {
+            throw new TespDecodingException("unable to decode the payload: " + e.getMessage());
+        }
+    }
+
+    public boolean hasPartialMessage() {
+        return data != null;
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.paco.net.tesp;
+
+import com.pacoapp.paco.net.tesp.message.request.TespRequestChunk;
+import com.pacoapp.paco.net.tesp.message.response.TespResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The encoded payload of a request that is sent in chunks while it is written, so it never has to be
+ * held in memory as a whole (see {@link TespRequestChunk}). Closing the stream sends the last chunk,
+ * after which {@link #getResponse()} completes with the server's response.
+ *
+ * The server discards a message whose next chunk is late, so once writing a chunk to the socket takes
+ * longer than the chunk timeout the stream fails with a {@link SocketTimeoutException}. The time the
+ * producer takes between writes isn't limited; one that is slower than the server's chunk timeout gets
+ * an error response once the stream is closed.
+ */
+public class TespChunkedOutputStream extends OutputStream {
+    static final int chunkSize = 64 * 1024;
+
+    interface ChunkWriter {
+        void write(TespRequestChunk chunk) throws IOException;
+
+        CompletableFuture<TespResponse> writeLast(TespRequestChunk chunk) throws IOException;
+
+        // Called once the stream is closed or has failed
+        void release();
+    }
+
+    private final int messageCode;
+    private final ChunkWriter writer;
+    private final long chunkTimeoutNanos;
+    private final byte[] buffer = new byte[chunkSize];
+    private int count;
+    private boolean started;
+    private boolean done;
+    private CompletableFuture<TespResponse> response;
+
+    TespChunkedOutputStream(int messageCode, ChunkWriter writer, int chunkTimeoutMs) {
+        this.messageCode = messageCode;
+        this.writer = writer;
+        this.chunkTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(chunkTimeoutMs);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeChunk();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == buffer.length) {
+                writeChunk();
+            }
+            final int n = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Sends the last chunk. Closing a stream that failed or is already closed does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        if (done) {
+            return;
+        }
+        if (!started) {
+            writeChunk();
+        }
+        try {
+            final long start = System.nanoTime();
+            response = writer.writeLast(TespRequestChunk.end(buffer, 0, count));
+            checkChunkTimeout(start);
+        } finally {
+            done = true;
+            writer.release();
+        }
+    }
+
+    /**
+     * Gives up on the message without sending the last chunk. The server discards what it has received
+     * once the chunk timeout passes or the next chunked message starts.
+     */
+    public void abort() {
+        if (!done) {
+            done = true;
+            writer.release();
+        }
+    }
+
+    /**
+     * The response to the assembled message, available once the stream is closed.
+     */
+    public CompletableFuture<TespResponse> getResponse() {
+        if (response == null) {
+            throw new IllegalStateException("The stream is not closed, or it failed");
+        }
+        return response;
+    }
+
+    private void writeChunk() throws IOException {
+        if (done) {
+            throw new IOException("The chunked stream is closed");
+        }
+        try {
+            final long start = System.nanoTime();
+            writer.write(started
+                    ? TespRequestChunk.next(buffer, 0, count)
+                    : TespRequestChunk.start(messageCode, buffer, 0, count));
+            checkChunkTimeout(start);
+        } catch (IOException e) {
+            done = true;
+            writer.release();
+            throw e;
+        }
+        started = true;
+        count = 0;
+    }
+
+    // The server has discarded the message if a chunk reached it too late
+    private void checkChunkTimeout(long writeStartNanos) throws SocketTimeoutException {
+        if (System.nanoTime() - writeStartNanos > chunkTimeoutNanos) {
+            throw new SocketTimeoutException("Writing a chunk took longer than "
+                    + TimeUnit.NANOSECONDS.toMillis(chunkTimeoutNanos) + "ms");
+        }
+    }
+}
@@ -14,65 +14,733 @@
 
 package com.pacoapp.paco.net.tesp;
 
+import com.pacoapp.paco.net.tesp.message.TespMessage;
 import com.pacoapp.paco.net.tesp.message.request.TespRequest;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEvent;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEventDeflated;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEventSession;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestChunk;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestHandshake;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestPing;
 import com.pacoapp.paco.net.tesp.message.response.TespResponse;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseAnswer;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseError;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseInvalidRequest;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseSuccess;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
+/**
+ * A TESP client that pipelines requests: several requests can be in flight on one connection, and
+ * responses are matched to requests in FIFO order as the protocol guarantees.
+ *
+ * After {@link #start()}, the connection is kept up in the background: an idle connection is checked
+ * with a ping, so a half-open socket is noticed by the response timeout rather than by a failed write,
+ * and a lost connection is re-established with exponential backoff. Sending never connects inline; it
+ * fails fast while there is no connection.
+ *
+ * Every new connection starts with a version handshake. If the server speaks protocol version 2, large
+ * AddEvent payloads are sent deflated, and payloads too large to build in memory can be streamed in
+ * chunks with {@link #openAddEventStream()}. Servers that speak version 3 also accept events in the
+ * binary encoding of {@link TespEventCodec}, and with version 4 each connection keeps a
+ * {@link TespEventCodec.Session}, so what the events of a connection share is only sent once.
+ */
 public class TespClient {
     private static final int defaultConnectionTimeoutMs = 5000;
     private static final int defaultChunkTimeoutMs = 5000;
 
+    // Maximum allowed time between
+    // (1) sending of one request is finished or previous request get responded, whichever happens later,
+    // and
+    // (2) a response is being received
+    // is (time used for sending the message) * responseTimeoutFactor + responseTimeoutLatencyMs,
+    // following the Dart TespClient.
+    private static final int responseTimeoutFactor = 20;
+    private static final long responseTimeoutLatencyMs = 2000;
+    // How often the response reader wakes up to check for overdue responses
+    private static final int readPollIntervalMs = 500;
+
+    // A connection without traffic for this long gets a ping
+    private static final long pingIntervalMs = 15000;
+    private static final long initialReconnectDelayMs = 500;
+    private static final long maxReconnectDelayMs = 60000;
+    // How long a server that rejected the handshake is assumed not to support it, in case it is upgraded
+    private static final long legacyServerRecheckMs = TimeUnit.MINUTES.toMillis(30);
+
+    // AddEvent payloads smaller than this when encoded as UTF-8 are sent as they are, as deflating
+    // them saves little
+    private static final int compressionThresholdBytes = 8 * 1024;
+    // The most a stream holds in memory for a server without chunked messages
+    private static final int defaultMaxBufferedPayloadBytes = 1024 * 1024;
+
     public static final Logger log = Logger.getLogger(TespClient.class.getName());
 
-    private final String serverAddress;
-    private final int port;
+    private final TespTransport transport;
 
     private final int connectionTimeoutMs;
     private final int chunkTimeoutMs;
 
-    private Socket socket;
-    private TespMessageSocket<TespResponse, TespRequest> tespSocket;
+    private final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "TespClient health monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> pingTask;
+    private ScheduledFuture<?> reconnectTask;
+    private long reconnectDelayMs = initialReconnectDelayMs;
+    private boolean closed;
+    // A server that rejected the handshake is remembered for a while, so reconnecting doesn't repeat it
+    private volatile boolean legacyServer;
+    private volatile long legacyServerSinceNanos;
+
+    private volatile Connection connection;
+    private volatile boolean hasWriteDeadline;
+    private volatile long writeDeadlineNanos;
+    // Connections established, only written with the lock on this held
+    private volatile long connectionCount;
+
+    public TespClient(String serverAddress, int port) {
+        this(new TespTcpTransport(serverAddress, port));
+    }
+
+    public TespClient(String serverAddress, int port, int connectionTimeout, int chunkTimeout) {
+        this(new TespTcpTransport(serverAddress, port), connectionTimeout, chunkTimeout);
+    }
 
-    public TespClient(String serverAddress, int port) throws IOException {
-        this(serverAddress, port, defaultConnectionTimeoutMs, defaultChunkTimeoutMs);
+    public TespClient(TespTransport transport) {
+        this(transport, defaultConnectionTimeoutMs, defaultChunkTimeoutMs);
     }
 
-    public TespClient(String serverAddress, int port, int connectionTimeout, int chunkTimeout) throws IOException {
-        this.serverAddress = serverAddress;
-        this.port = port;
+    public TespClient(TespTransport transport, int connectionTimeout, int chunkTimeout) {
+        this.transport = transport;
         this.connectionTimeoutMs = connectionTimeout;
         this.chunkTimeoutMs = chunkTimeout;
+    }
 
-        connect();
+    /**
+     * Connects in the background and starts monitoring the connection.
+     */
+    public synchronized void start() {
+        if (closed || pingTask != null) {
+            return;
+        }
+        // Check more often than the ping interval, so an idle connection is pinged soon after it goes idle
+        pingTask = monitor.scheduleWithFixedDelay(this::checkHealth, pingIntervalMs / 4, pingIntervalMs / 4,
+                TimeUnit.MILLISECONDS);
+        scheduleReconnect(0);
     }
 
+    /**
+     * Connects on the calling thread, blocking for up to the connection timeout. The lock on this is
+     * only taken to publish the new connection, so sending, closing and reconnecting aren't held up
+     * while the server is slow to answer.
+     */
     public void connect() throws IOException {
-	socket = new Socket();
-        socket.connect(new InetSocketAddress(serverAddress, port), connectionTimeoutMs);
-        tespSocket = new TespMessageSocket<>(socket);
+        Connection newConnection = openConnection();
+        if (legacyServer && System.nanoTime() - legacyServerSinceNanos
+                > TimeUnit.MILLISECONDS.toNanos(legacyServerRecheckMs)) {
+            legacyServer = false;
+        }
+        if (!legacyServer) {
+            final int version;
+            try {
+                version = handshake(newConnection);
+            } catch (IOException e) {
+                newConnection.close(TespResponseError.tespClientErrorLostConnection);
+                throw e;
+            }
+            if (version > TespCodec.baseProtocolVersion) {
+                newConnection.protocolVersion = version;
+            } else {
+                // The server closes the connection after rejecting the handshake
+                log.info("The TESP server doesn't support the handshake, using protocol version "
+                        + TespCodec.baseProtocolVersion);
+                legacyServerSinceNanos = System.nanoTime();
+                legacyServer = true;
+                newConnection.close(TespResponseError.tespClientErrorLostConnection);
+                newConnection = openConnection();
+            }
+        }
+        final Connection oldConnection;
+        synchronized (this) {
+            // The client may have been closed, or the server may have dropped the connection, meanwhile
+            if (closed || newConnection.isBroken()) {
+                oldConnection = newConnection;
+            } else {
+                oldConnection = connection;
+                connection = newConnection;
+                connectionCount++;
+            }
+        }
+        if (oldConnection == newConnection) {
+            newConnection.close(TespResponseError.tespClientErrorLostConnection);
+            throw new IOException("Connection to the TESP server at " + transport.describe()
+                    + " was closed while connecting");
+        }
+        // Closed outside the lock, as closing completes the futures still waiting on it
+        if (oldConnection != null) {
+            oldConnection.close(TespResponseError.tespClientErrorLostConnection);
+        }
     }
 
-    // TODO Handle a response
-    public /*TespResponse*/ void send(TespRequest request) throws IOException {
-        if (tespSocket == null || tespSocket.isBroken()) {
-            connect();
+    private Connection openConnection() throws IOException {
+        final SocketChannel channel = transport.open(connectionTimeoutMs);
+        final Connection newConnection;
+        try {
+            final TespMessageSocket<TespResponse, TespRequest> tespSocket =
+                    new TespMessageSocket<>(channel, TespBufferPool.getDefault());
+            if (hasWriteDeadline) {
+                tespSocket.setWriteDeadline(writeDeadlineNanos);
+            }
+            newConnection = new Connection(tespSocket, this::onConnectionClosed, chunkTimeoutMs);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        newConnection.startReading();
+        return newConnection;
+    }
+
+    /**
+     * Returns the protocol version agreed with the server, or the base version if the server
+     * rejected the handshake as an invalid request. Throws if the handshake failed any other way, e.g.
+     * as a restarting server dropped the connection, so it is tried again on the next connection.
+     */
+    private int handshake(Connection newConnection) throws IOException {
+        final TespResponse response;
+        try {
+            response = newConnection.send(Collections.singletonList(new TespRequestHandshake())).get(0)
+                    .get(connectionTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during the TESP handshake");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("No response to the TESP handshake in " + connectionTimeoutMs + "ms");
+        }
+        if (response instanceof TespResponseAnswer) {
+            try {
+                final int version = Integer.parseInt(((TespResponseAnswer) response).getPayload().trim());
+                return Math.max(TespCodec.baseProtocolVersion, Math.min(version, TespCodec.protocolVersion));
+            } catch (NumberFormatException e) {
+                log.warning("Invalid TESP handshake answer: " + ((TespResponseAnswer) response).getPayload());
+                return TespCodec.baseProtocolVersion;
+            }
+        }
+        if (response instanceof TespResponseInvalidRequest) {
+            // How a server that predates the handshake rejects its protocol version
+            return TespCodec.baseProtocolVersion;
+        }
+        if (response instanceof TespResponseError) {
+            final String errorCode = ((TespResponseError) response).getErrorCode();
+            if (TespResponseError.tespClientErrorResponseTimeout.equals(errorCode)) {
+                throw new SocketTimeoutException("No response to the TESP handshake");
+            }
+            throw new IOException("The TESP handshake failed: " + errorCode);
+        }
+        throw new IOException("Unexpected answer to the TESP handshake: " + response.getClass().getSimpleName());
+    }
+
+    /**
+     * How many connections have been established, including the first one.
+     */
+    public long getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * The protocol version agreed with the server on the current connection. Throws if there is none.
+     */
+    public int getProtocolVersion() throws IOException {
+        return getConnection().protocolVersion;
+    }
+
+    public boolean isConnected() {
+        final Connection current = connection;
+        return current != null && !current.isBroken();
+    }
+
+    /**
+     * Writes the request and returns without waiting for the server. The returned future completes
+     * with the server's response, or with a {@link TespResponseError} carrying one of the client error
+     * codes if the connection fails first. It is never completed exceptionally.
+     */
+    public CompletableFuture<TespResponse> sendAsync(TespRequest request) throws IOException {
+        return sendAsync(Collections.singletonList(request)).get(0);
+    }
+
+    /**
+     * Like {@link #sendAsync(TespRequest)}, but the requests are written together, usually with a
+     * single system call. The futures are in the order of the requests.
+     */
+    public List<CompletableFuture<TespResponse>> sendAsync(List<? extends TespRequest> requests) throws IOException {
+        for (TespRequest request : requests) {
+            if (request instanceof TespRequestChunk) {
+                throw new IllegalArgumentException("Chunks are only sent by a TespChunkedOutputStream");
+            }
+        }
+        final Connection current = getConnection();
+        for (TespRequest request : requests) {
+            // E.g. built for a connection that has since been replaced by one to an older server
+            if (request.getProtocolVersion() > current.protocolVersion) {
+                throw new IOException("The TESP server doesn't support protocol version " + request.getProtocolVersion());
+            }
+        }
+        if (current.protocolVersion >= TespRequestAddEventDeflated.minProtocolVersion) {
+            return current.send(deflateLargeEvents(requests));
+        }
+        return current.send(requests);
+    }
+
+    /**
+     * Opens a stream that encodes the UTF-8 JSON payload of an AddEvent request straight into a frame,
+     * for {@link #sendAsync(TespRequest)} once finished. Large payloads are deflated as they are written
+     * if the server supports it.
+     */
+    public TespFrameOutputStream openAddEventFrame() throws IOException {
+        final Connection current = getConnection();
+        return new TespFrameOutputStream(TespBufferPool.getDefault(),
+                current.protocolVersion >= TespRequestAddEventDeflated.minProtocolVersion
+                        ? compressionThresholdBytes : -1);
+    }
+
+    /**
+     * Opens a stream for the UTF-8 JSON payload of an AddEvent request, holding at most 1 MB in memory
+     * for a server without chunked messages. See {@link #openAddEventStream(int)}.
+     */
+    public TespChunkedOutputStream openAddEventStream() throws IOException {
+        return openAddEventStream(defaultMaxBufferedPayloadBytes);
+    }
+
+    /**
+     * Opens a stream for the UTF-8 JSON payload of an AddEvent request. The payload is sent in chunks
+     * as it is written, so it is never held in memory as a whole. Only one stream can be open at a time;
+     * this waits for up to the chunk timeout for another one to be closed.
+     *
+     * Servers without chunked messages (protocol version 1) get a single AddEvent request instead, built
+     * once the stream is closed. The payload is then held in memory, and writing fails with an
+     * IOException once it grows past {@code maxBufferedBytes}.
+     */
+    public TespChunkedOutputStream openAddEventStream(int maxBufferedBytes) throws IOException {
+        final Connection current = getConnection();
+        try {
+            if (!current.chunkedStream.tryAcquire(chunkTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("Another chunked message is still being sent");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a chunked message");
+        }
+        final TespChunkedOutputStream.ChunkWriter writer =
+                current.protocolVersion >= TespRequestChunk.minProtocolVersion
+                ? current.chunkWriter()
+                : new BufferingChunkWriter(current, maxBufferedBytes);
+        return new TespChunkedOutputStream(TespMessage.tespCodeRequestAddEvent, writer, chunkTimeoutMs);
+    }
+
+    private Connection getConnection() throws IOException {
+        final Connection current = connection;
+        if (current == null || current.isBroken()) {
+            synchronized (this) {
+                scheduleReconnect(reconnectDelayMs);
+            }
+            throw new IOException("Not connected to the TESP server at " + transport.describe());
+        }
+        return current;
+    }
+
+    private static List<? extends TespRequest> deflateLargeEvents(List<? extends TespRequest> requests) {
+        List<TespRequest> result = null;
+        for (int i = 0; i < requests.size(); i++) {
+            final TespRequest request = requests.get(i);
+            if (request instanceof TespRequestAddEvent
+                    && isAtLeastUtf8Bytes(((TespRequestAddEvent) request).getPayload(), compressionThresholdBytes)) {
+                if (result == null) {
+                    result = new ArrayList<>(requests);
+                }
+                result.set(i, TespRequestAddEventDeflated.withPayload(((TespRequestAddEvent) request).getPayload()));
+            }
+        }
+        return result == null ? requests : result;
+    }
+
+    // Whether the string takes at least the given number of bytes in UTF-8, without encoding it
+    private static boolean isAtLeastUtf8Bytes(String s, int bytes) {
+        final int length = s.length();
+        if (length >= bytes) {
+            return true;
+        }
+        // A char takes at most 3 bytes; a surrogate pair takes 4, i.e. 2 per char
+        if ((long) length * 3 < bytes) {
+            return false;
+        }
+        int count = 0;
+        for (int i = 0; i < length && count < bytes; i++) {
+            final char c = s.charAt(i);
+            count += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return count >= bytes;
+    }
+
+    public TespResponse send(TespRequest request) throws IOException {
+        try {
+            return sendAsync(request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a TESP response");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Makes writes that would block past {@code deadlineNanos}, a {@link System#nanoTime()}, fail and
+     * close their connection, e.g. to shut down in time.
+     */
+    public void setWriteDeadline(long deadlineNanos) {
+        writeDeadlineNanos = deadlineNanos;
+        hasWriteDeadline = true;
+        final Connection current = connection;
+        if (current != null) {
+            current.tespSocket.setWriteDeadline(deadlineNanos);
         }
-        tespSocket.add(request);
     }
 
     public void close() {
-        tespSocket.close();
+        final Connection current;
+        synchronized (this) {
+            closed = true;
+            monitor.shutdownNow();
+            current = connection;
+            connection = null;
+        }
+        if (current != null) {
+            current.close(TespResponseError.tespClientErrorLostConnection);
+        }
+    }
+
+    private synchronized void onConnectionClosed(Connection closedConnection) {
+        if (closedConnection == connection) {
+            connection = null;
+            scheduleReconnect(reconnectDelayMs);
+        }
+    }
+
+    // Must hold the lock on this
+    private void scheduleReconnect(long delayMs) {
+        if (closed || pingTask == null || (reconnectTask != null && !reconnectTask.isDone())) {
+            return;
+        }
+        reconnectTask = monitor.schedule(this::reconnect, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            if (closed || isConnected()) {
+                return;
+            }
+        }
+        try {
+            connect();
+            synchronized (this) {
+                reconnectDelayMs = initialReconnectDelayMs;
+                // This task is done, so a connection lost from now on schedules another
+                reconnectTask = null;
+                // One lost before now couldn't, as this task was still running
+                if (connection == null) {
+                    scheduleReconnect(reconnectDelayMs);
+                }
+            }
+            log.info("Connected to the TESP server at " + transport.describe());
+        } catch (IOException e) {
+            synchronized (this) {
+                log.fine("Could not connect to the TESP server, retrying in " + reconnectDelayMs + "ms: "
+                        + e.getMessage());
+                reconnectTask = monitor.schedule(this::reconnect, reconnectDelayMs, TimeUnit.MILLISECONDS);
+                reconnectDelayMs = Math.min(reconnectDelayMs * 2, maxReconnectDelayMs);
+            }
+        }
+    }
+
+    // A half-open connection doesn't fail until something is written to it, so idle connections are
+    // pinged. If the ping isn't answered in time, the response timeout closes the connection.
+    private void checkHealth() {
+        final Connection current = connection;
+        if (current == null || current.isBroken()
+                || System.nanoTime() - current.lastActivityNanos < TimeUnit.MILLISECONDS.toNanos(pingIntervalMs)) {
+            return;
+        }
         try {
-            socket.close();
+            current.send(Collections.singletonList(new TespRequestPing())).get(0).thenAccept(response -> {
+                if (response instanceof TespResponseError) {
+                    log.warning("Ping failed: " + ((TespResponseError) response).getErrorCode());
+                }
+            });
         } catch (IOException e) {
-            log.warning("Exception closing TespClient socket: " + e.getMessage());
-        } finally {
-            tespSocket = null;
-            socket = null;
+            log.warning("Could not ping the TESP server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Collects the chunks of an AddEvent payload for a server that doesn't understand chunks, and sends
+     * them as one request. Fails once the payload grows past its limit.
+     */
+    private static class BufferingChunkWriter implements TespChunkedOutputStream.ChunkWriter {
+        private final Connection connection;
+        private final int maxBytes;
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        BufferingChunkWriter(Connection connection, int maxBytes) {
+            this.connection = connection;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(TespRequestChunk chunk) throws IOException {
+            final byte[] data = chunk.getData();
+            if (payload.size() + data.length > maxBytes) {
+                throw new IOException("The TESP server doesn't accept chunked messages, and the payload is "
+                        + "larger than " + maxBytes + " bytes");
+            }
+            payload.write(data, 0, data.length);
+        }
+
+        @Override
+        public CompletableFuture<TespResponse> writeLast(TespRequestChunk chunk) throws IOException {
+            write(chunk);
+            final TespRequest request = TespRequestAddEvent.withEncodedPayload(payload.toByteArray());
+            return connection.send(Collections.singletonList(request)).get(0);
+        }
+
+        @Override
+        public void release() {
+            connection.chunkedStream.release();
+        }
+    }
+
+    private static class PendingResponse {
+        final CompletableFuture<TespResponse> future = new CompletableFuture<>();
+        // Both are set once the request has been written
+        long sentNanos;
+        long timeoutNanos = -1;
+    }
+
+    private static class Connection {
+        private final TespMessageSocket<TespResponse, TespRequest> tespSocket;
+        // Guarded by itself, and only filled with writeLock held too. Requests are written under
+        // writeLock, and their responses queued in the same order before the lock is released, so the
+        // queue order is the order on the wire. The reader only needs this lock, so it isn't held up
+        // while a write blocks.
+        private final Queue<PendingResponse> pendingResponses = new ArrayDeque<>();
+        private final Object writeLock = new Object();
+        private final Consumer<Connection> closeListener;
+        private final long chunkTimeoutNanos;
+        // The version agreed in the handshake
+        volatile int protocolVersion = TespCodec.baseProtocolVersion;
+        // Held while a chunked message is being sent, as the server assembles one at a time
+        final Semaphore chunkedStream = new Semaphore(1);
+        // Guarded by writeLock, like the order of the requests it encodes
+        private final TespEventCodec.Session eventSession = new TespEventCodec.Session();
+        private long lastResponseNanos;
+        // The last time a request was written or a response was read
+        volatile long lastActivityNanos;
+        private volatile boolean closed;
+
+        Connection(TespMessageSocket<TespResponse, TespRequest> tespSocket, Consumer<Connection> closeListener,
+                int chunkTimeoutMs) {
+            this.tespSocket = tespSocket;
+            this.closeListener = closeListener;
+            this.chunkTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(chunkTimeoutMs);
+            this.lastResponseNanos = System.nanoTime();
+            this.lastActivityNanos = lastResponseNanos;
+        }
+
+        void startReading() {
+            final Thread reader = new Thread(this::readResponses, "TespClient response reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        boolean isBroken() {
+            return closed || tespSocket.isBroken();
+        }
+
+        List<CompletableFuture<TespResponse>> send(List<? extends TespRequest> requests) throws IOException {
+            final List<PendingResponse> sent = new ArrayList<>(requests.size());
+            final List<CompletableFuture<TespResponse>> futures = new ArrayList<>(requests.size());
+            IOException flushError = null;
+            synchronized (writeLock) {
+                for (TespRequest request : requests) {
+                    if (request instanceof TespRequestAddEventSession) {
+                        // Encoded in the order the requests go on the wire, as each builds on those before
+                        ((TespRequestAddEventSession) request).encode(eventSession);
+                    }
+                    // Only the end chunk of a chunked message is answered
+                    if (!(request instanceof TespRequestChunk) || ((TespRequestChunk) request).isEnd()) {
+                        final PendingResponse pending = new PendingResponse();
+                        if (request instanceof TespRequestAddEventSession) {
+                            // The server may not have decoded a frame it didn't accept
+                            pending.future.thenAccept(response -> {
+                                if (!(response instanceof TespResponseSuccess)) {
+                                    eventSession.resetOnNextFrame();
+                                }
+                            });
+                        }
+                        sent.add(pending);
+                    }
+                }
+                synchronized (pendingResponses) {
+                    if (closed) {
+                        throw new IOException("Connection to the TESP server is closed");
+                    }
+                    // Before writing, as a response can arrive before the write returns. The timeouts
+                    // only start once they are set below.
+                    for (PendingResponse pending : sent) {
+                        pendingResponses.add(pending);
+                        futures.add(pending.future);
+                    }
+                }
+                final long start = System.nanoTime();
+                try {
+                    for (TespRequest request : requests) {
+                        tespSocket.add(request);
+                    }
+                    tespSocket.flush();
+                    final long end = System.nanoTime();
+                    final long timeoutNanos = (end - start) * responseTimeoutFactor
+                            + TimeUnit.MILLISECONDS.toNanos(responseTimeoutLatencyMs);
+                    synchronized (pendingResponses) {
+                        for (PendingResponse pending : sent) {
+                            pending.sentNanos = end;
+                            pending.timeoutNanos = timeoutNanos;
+                        }
+                    }
+                    lastActivityNanos = end;
+                } catch (IOException e) {
+                    flushError = e;
+                }
+            }
+            // Closing notifies the client, so it must happen outside the lock
+            if (flushError != null) {
+                close(TespResponseError.tespClientErrorLostConnection);
+                throw flushError;
+            }
+            return futures;
+        }
+
+        TespChunkedOutputStream.ChunkWriter chunkWriter() {
+            return new TespChunkedOutputStream.ChunkWriter() {
+                @Override
+                public void write(TespRequestChunk chunk) throws IOException {
+                    send(Collections.singletonList(chunk));
+                }
+
+                @Override
+                public CompletableFuture<TespResponse> writeLast(TespRequestChunk chunk) throws IOException {
+                    return send(Collections.singletonList(chunk)).get(0);
+                }
+
+                @Override
+                public void release() {
+                    chunkedStream.release();
+                }
+            };
+        }
+
+        private void readResponses() {
+            while (!closed) {
+                final TespResponse response;
+                try {
+                    response = tespSocket.read(readPollIntervalMs);
+                } catch (SocketTimeoutException e) {
+                    if (tespSocket.hasPartialMessage()
+                            && System.nanoTime() - tespSocket.getLastReadNanos() > chunkTimeoutNanos) {
+                        log.warning("Timeout waiting for the next chunk of a response.");
+                        close(TespResponseError.tespClientErrorChunkTimeout);
+                    } else if (isResponseOverdue()) {
+                        log.warning("Response timeout.");
+                        close(TespResponseError.tespClientErrorResponseTimeout);
+                    }
+                    continue;
+                } catch (TespDecodingException e) {
+                    log.warning("Invalid response: " + e.getMessage());
+                    close(TespResponseError.tespClientErrorDecoding, e.getMessage());
+                    return;
+                } catch (IOException e) {
+                    if (!closed) {
+                        log.warning("Lost connection to the TESP server: " + e.getMessage());
+                        close(TespResponseError.tespClientErrorServerCloseEarly, e.getMessage());
+                    }
+                    return;
+                }
+
+                final PendingResponse pending;
+                synchronized (pendingResponses) {
+                    pending = pendingResponses.poll();
+                    lastResponseNanos = System.nanoTime();
+                    lastActivityNanos = lastResponseNanos;
+                }
+                if (pending == null) {
+                    if (closed) {
+                        return;
+                    }
+                    log.warning("Unexpected response: the client received a response before sending a request.");
+                } else {
+                    pending.future.complete(response);
+                }
+            }
+        }
+
+        private boolean isResponseOverdue() {
+            synchronized (pendingResponses) {
+                final PendingResponse head = pendingResponses.peek();
+                if (head == null || head.timeoutNanos < 0) {
+                    return false;
+                }
+                final long start = Math.max(head.sentNanos, lastResponseNanos);
+                return System.nanoTime() - start > head.timeoutNanos;
+            }
+        }
+
+        void close(String errorCode) {
+            close(errorCode, null);
+        }
+
+        void close(String errorCode, String errorMessage) {
+            final Queue<PendingResponse> failed;
+            synchronized (pendingResponses) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                failed = new ArrayDeque<>(pendingResponses);
+                pendingResponses.clear();
+            }
+            tespSocket.close();
+            for (PendingResponse pending : failed) {
+                pending.future.complete(new TespResponseError(errorCode, errorMessage));
+            }
+            closeListener.accept(this);
         }
     }
 }
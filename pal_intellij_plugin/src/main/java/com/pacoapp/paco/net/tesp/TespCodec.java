@@ -16,12 +16,27 @@ package com.pacoapp.paco.net.tesp;
 
 import com.pacoapp.paco.net.tesp.message.TespMessage;
 import com.pacoapp.paco.net.tesp.message.TespPayload;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestEncoded;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestWithStringPayload;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseWithStringPayload;
 
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 public class TespCodec {
-    // The TESP protocol version. It needs to fit in an 8-bit unsigned integer (0-255).
-    public static final int protocolVersion = 1;
+    // The highest TESP protocol version supported. It needs to fit in an 8-bit unsigned integer (0-255).
+    // Version 2 adds the handshake and deflated AddEvent frames, version 3 binary AddEvent frames, and
+    // version 4 binary AddEvent frames that build on the earlier ones of the connection.
+    public static final int protocolVersion = 4;
+    // Messages defined in version 1 are still framed as version 1, so servers that predate the
+    // handshake keep understanding them
+    public static final int baseProtocolVersion = 1;
 
     // Constants associated with the protocol specification
     public static final int headerLength = 2;
@@ -35,7 +50,6 @@ public class TespCodec {
     private static final TespCodec instance = new TespCodec();
 
     private final Encoder encoder = new Encoder();
-    private final Decoder decoder = new Decoder();
 
     private TespCodec() {}
 
@@ -47,37 +61,246 @@ public class TespCodec {
         return encoder.encode(message);
     }
 
-    public Decoder getDecoder() {
-        return decoder;
+    /**
+     * Writes the header of the message, including the payload size if it has a payload, and flips
+     * the buffer for reading. The payload itself is left to the caller.
+     */
+    public void encodeHeader(TespMessage message, ByteBuffer header) {
+        encoder.encodeHeader(message, header);
     }
 
-    public Decoder getDecoderAddingEvent() {
-        return decoder;
+    // Pooled encoders keep a CharsetEncoder, so every writer needs its own.
+    public PooledEncoder newPooledEncoder(TespBufferPool pool) {
+        return new PooledEncoder(pool);
+    }
+
+    // Decoders keep the state of a partially received frame, so every stream needs its own.
+    public Decoder newDecoder() {
+        return new Decoder();
+    }
+
+    public static boolean isCodeForTespMessageWithPayload(int code) {
+        return (code & 0x01) == 0x01;
+    }
+
+    public static boolean isCodeForTespRequest(int code) {
+        return (code & 0x80) == 0x00;
+    }
+
+    public static boolean isCodeForTespResponse(int code) {
+        return (code & 0x80) == 0x80;
+    }
+
+    static void checkProtocolVersion(int version) throws TespDecodingException {
+        if (version < baseProtocolVersion || version > protocolVersion) {
+            throw new TespDecodingException("unsupported protocol version: " + version + ".");
+        }
     }
 
     static class Encoder {
-        public byte[] encode(TespMessage message) {
-            final byte protocolVersionByte = ByteBuffer.allocate(4).putInt(protocolVersion).array()[3];
-            final byte messageCodeByte = ByteBuffer.allocate(4).putInt(message.getCode()).array()[3];
+        public void encodeHeader(TespMessage message, ByteBuffer header) {
+            putHeader(message, message.hasPayload() ? message.payloadSize() : -1, header);
+            header.flip();
+        }
 
-            if (message.hasPayload()) {
+        public byte[] encode(TespMessage message) {
+            if (message instanceof TespRequestEncoded) {
+                final ByteBuffer buffer = ByteBuffer.allocate(payloadOffset + message.payloadSize());
+                for (ByteBuffer part : ((TespRequestEncoded) message).getFrame()) {
+                    buffer.put(part.duplicate());
+                }
+                return buffer.array();
+            } else if (message.hasPayload()) {
                 final ByteBuffer buffer = ByteBuffer.allocate(payloadOffset + message.payloadSize());
-                buffer.put(protocolVersionByte);
-                buffer.put(messageCodeByte);
-                buffer.putInt(message.payloadSize());
+                putHeader(message, message.payloadSize(), buffer);
                 buffer.put(((TespPayload)message).getEncodedPayload());
                 return buffer.array();
             } else {
                 final ByteBuffer buffer = ByteBuffer.allocate(headerLength);
-                buffer.put(protocolVersionByte);
-                buffer.put(messageCodeByte);
+                putHeader(message, -1, buffer);
                 return buffer.array();
             }
         }
+
+        // A negative payloadSize is for messages without payload
+        static void putHeader(TespMessage message, int payloadSize, ByteBuffer header) {
+            header.put((byte) message.getProtocolVersion());
+            header.put((byte) message.getCode());
+            if (payloadSize >= 0) {
+                header.putInt(payloadSize);
+            }
+        }
     }
 
-    static class Decoder {
-        // TODO
-        // PAL IntelliJ plugin (as written) doesn't really care about responses
+    /**
+     * Encodes messages with a String payload straight into direct buffers taken from a
+     * {@link TespBufferPool}, without building the byte[] of the payload first. Other messages are
+     * encoded as usual. An instance keeps a {@link CharsetEncoder}, so it must only be used by one
+     * thread at a time.
+     */
+    public static class PooledEncoder {
+        private final TespBufferPool pool;
+        private final CharsetEncoder charsetEncoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        PooledEncoder(TespBufferPool pool) {
+            this.pool = pool;
+        }
+
+        /**
+         * Writes the header of the message into {@code header} and passes the payload buffers to
+         * {@code sink}, all flipped for reading. Buffers for which {@link TespBufferPool#isPooled} is true
+         * must be released to the pool once written.
+         */
+        public void encode(TespMessage message, ByteBuffer header, Consumer<ByteBuffer> sink) {
+            if (!message.hasPayload()) {
+                Encoder.putHeader(message, -1, header);
+            } else if (message instanceof TespRequestWithStringPayload
+                    || message instanceof TespResponseWithStringPayload) {
+                // Plain UTF-8 payloads; other payloads, e.g. deflated ones, have their own encoding
+                final int payloadSize = encodeString((String) ((TespPayload<?>) message).getPayload(), sink);
+                Encoder.putHeader(message, payloadSize, header);
+            } else {
+                Encoder.putHeader(message, message.payloadSize(), header);
+                if (message.payloadSize() > 0) {
+                    sink.accept(ByteBuffer.wrap(((TespPayload<?>) message).getEncodedPayload()));
+                }
+            }
+            header.flip();
+        }
+
+        private int encodeString(String payload, Consumer<ByteBuffer> sink) {
+            final CharBuffer chars = CharBuffer.wrap(payload);
+            charsetEncoder.reset();
+            ByteBuffer out = pool.acquire();
+            int size = 0;
+            boolean flushing = false;
+            while (true) {
+                final CoderResult result = flushing
+                        ? charsetEncoder.flush(out)
+                        : charsetEncoder.encode(chars, out, true);
+                if (result.isOverflow()) {
+                    out.flip();
+                    size += out.remaining();
+                    sink.accept(out);
+                    out = pool.acquire();
+                } else if (!flushing) {
+                    flushing = true;
+                } else {
+                    break;
+                }
+            }
+            out.flip();
+            if (out.hasRemaining()) {
+                size += out.remaining();
+                sink.accept(out);
+            } else {
+                pool.release(out);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Decodes a stream of TESP frames handed over in arbitrary slices, e.g. as they come off a socket.
+     * A frame may be split anywhere, including inside the header. The payload buffer is reused across
+     * frames and only grows when a larger frame arrives.
+     */
+    public static class Decoder {
+        private static final int initialPayloadCapacity = 4096;
+        // Buffers grown beyond this size for an unusually large frame are not kept around
+        private static final int maxRetainedPayloadCapacity = 1 << 20;
+
+        private final ByteBuffer header = ByteBuffer.allocate(headerWithPayloadSizeLength);
+        private ByteBuffer payload = ByteBuffer.allocate(initialPayloadCapacity);
+        private int code;
+
+        Decoder() {}
+
+        /**
+         * Consumes all remaining bytes of {@code input} and passes every completed message to {@code sink}.
+         */
+        public void decode(ByteBuffer input, Consumer<TespMessage> sink) throws TespDecodingException {
+            while (input.hasRemaining()) {
+                if (header.position() < headerLength) {
+                    final byte b = input.get();
+                    if (header.position() == versionOffset) {
+                        checkProtocolVersion(b & 0xFF);
+                    }
+                    header.put(b);
+                    if (header.position() == headerLength) {
+                        code = header.get(codeOffset) & 0xFF;
+                        if (!isCodeForTespMessageWithPayload(code)) {
+                            sink.accept(buildMessage(null));
+                        }
+                    }
+                } else if (header.hasRemaining()) {
+                    transfer(input, header);
+                    if (!header.hasRemaining()) {
+                        startPayload(header.getInt(payloadSizeOffset));
+                        if (!payload.hasRemaining()) {
+                            sink.accept(buildMessage(payload));
+                        }
+                    }
+                } else {
+                    transfer(input, payload);
+                    if (!payload.hasRemaining()) {
+                        sink.accept(buildMessage(payload));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Whether part of a frame has been consumed without the frame being complete yet.
+         */
+        public boolean hasPartialMessage() {
+            return header.position() > 0;
+        }
+
+        public void reset() {
+            header.clear();
+            payload.clear();
+            if (payload.capacity() > maxRetainedPayloadCapacity) {
+                payload = ByteBuffer.allocate(initialPayloadCapacity);
+            }
+        }
+
+        private void startPayload(int payloadSize) throws TespDecodingException {
+            if (payloadSize < 0) {
+                reset();
+                throw new TespDecodingException("payload size exceeds " + Integer.MAX_VALUE + " bytes.");
+            }
+            if (payload.capacity() < payloadSize) {
+                payload = ByteBuffer.allocate(Math.max(payloadSize, payload.capacity() * 2));
+            }
+            payload.clear();
+            payload.limit(payloadSize);
+        }
+
+        private TespMessage buildMessage(ByteBuffer payloadBuffer) throws TespDecodingException {
+            try {
+                if (payloadBuffer == null) {
+                    return TespMessage.fromCode(code);
+                } else {
+                    return TespMessage.fromCode(code, Arrays.copyOf(payloadBuffer.array(), payloadBuffer.limit()));
+                }
+            } catch (IllegalArgumentException e) {
+                throw new TespDecodingException("undefined message code: " + Integer.toHexString(code) + ".");
+            } catch (RuntimeException e) {
+                throw new TespDecodingException("unable to decode the payload: " + e.getMessage());
+            } finally {
+                reset();
+            }
+        }
+
+        private static void transfer(ByteBuffer from, ByteBuffer to) {
+            final int count = Math.min(from.remaining(), to.remaining());
+            final int limit = from.limit();
+            from.limit(from.position() + count);
+            to.put(from);
+            from.limit(limit);
+        }
     }
 }
@@ -0,0 +1,656 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp;
+
+import com.pacoapp.paco.shared.model2.Output;
+import com.pacoapp.paco.shared.model2.PacoEvent;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compact binary payload of a {@link com.pacoapp.paco.net.tesp.message.request.TespRequestAddEventBinary}:
+ * a batch of events that decodes to the same JSON as the batch itself.
+ *
+ * <pre>
+ * payload    = varint stringCount, (varint byteLength, UTF-8 bytes) * stringCount,
+ *              varint eventCount, zigzag baseMillis, event * eventCount
+ * event      = varint fieldMask, then each field whose bit is set, in the order of the bits
+ * </pre>
+ *
+ * Every string is written once, in the dictionary at the start of the frame, and referred to by its
+ * index everywhere else, so repeated output names and values cost a byte or two. A string value is a
+ * varint tag: 0 for null, 1 for a canonical decimal integer that follows as a zigzag varint, and
+ * {@code index + 2} for a dictionary string. Numbers are zigzag varints, and times are millis relative
+ * to the base time of the frame; response and scheduled times also carry their zone offset in seconds,
+ * which their JSON format includes.
+ *
+ * Frames encoded with a {@link Session}, i.e. on one connection, build on the frames before them. The
+ * dictionary of a frame only holds the strings that are new to the session, and indexes count on from
+ * the previous frame, so a file path or action class is sent once per connection. The fields that stay
+ * the same from event to event, like the experiment and the group name, form the envelope of the
+ * session: an event leaves out those that match the last value sent, and the decoder takes them from
+ * its copy of the envelope.
+ *
+ * <pre>
+ * sessionPayload = varint flags, payload
+ * sessionEvent   = varint fieldMask, varint inheritedMask, then each field whose bit is set in
+ *                  fieldMask but not in inheritedMask
+ * </pre>
+ *
+ * The only flag resets the session before the frame, which the encoder does once the dictionary has
+ * grown past its limits.
+ */
+public class TespEventCodec {
+    private static final int idBit = 1;
+    private static final int experimentIdBit = 1 << 1;
+    private static final int whoBit = 1 << 2;
+    private static final int whenBit = 1 << 3;
+    private static final int appIdBit = 1 << 4;
+    private static final int pacoVersionBit = 1 << 5;
+    private static final int experimentNameBit = 1 << 6;
+    private static final int responseTimeBit = 1 << 7;
+    private static final int scheduledTimeBit = 1 << 8;
+    private static final int blobsBit = 1 << 9;
+    private static final int experimentVersionBit = 1 << 10;
+    private static final int timezoneBit = 1 << 11;
+    private static final int experimentGroupNameBit = 1 << 12;
+    private static final int actionTriggerIdBit = 1 << 13;
+    private static final int actionTriggerSpecIdBit = 1 << 14;
+    private static final int actionIdBit = 1 << 15;
+    private static final int sortDateBit = 1 << 16;
+    private static final int responsesBit = 1 << 17;
+    // Sent once per session while they don't change
+    private static final int envelopeBits = experimentIdBit | whoBit | appIdBit | pacoVersionBit | experimentNameBit
+            | experimentVersionBit | timezoneBit | experimentGroupNameBit;
+
+    private static final int resetSessionFlag = 1;
+    // The session is reset before it holds more than about this many strings or bytes of strings
+    private static final int maxSessionStrings = 16 * 1024;
+    private static final long maxSessionBytes = 1024 * 1024;
+
+    private static final int nullTag = 0;
+    private static final int integerTag = 1;
+    private static final int firstStringTag = 2;
+    // Output names are tagged one higher, leaving 0 for a null output
+    private static final int nullOutputTag = 0;
+
+    private TespEventCodec() {}
+
+    public static byte[] encode(List<PacoEvent> events) {
+        return new Encoder(null).encode(events);
+    }
+
+    /**
+     * Encodes a frame of the session. It must be the next frame the decoding end sees.
+     */
+    public static byte[] encode(List<PacoEvent> events, Session session) {
+        return new Encoder(session).encode(events);
+    }
+
+    /**
+     * Throws an {@link IllegalArgumentException} if the payload is malformed.
+     */
+    public static List<PacoEvent> decode(byte[] payload) {
+        return decode(payload, null);
+    }
+
+    /**
+     * Decodes the next frame of the session. Throws an {@link IllegalArgumentException} if the payload
+     * is malformed, after which the session is out of step with the encoding end and can't be used.
+     */
+    public static List<PacoEvent> decode(byte[] payload, Session session) {
+        try {
+            return new Decoder(payload, session).decode();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated binary event payload");
+        }
+    }
+
+    /**
+     * What the frames of one connection share, on either end: the strings sent so far and the envelope.
+     * It isn't thread-safe; frames have to be encoded in the order they are sent, and decoded in the
+     * order they are received.
+     * <p>
+     * The decoding end must decode every frame it receives, including those it answers with Paused or
+     * an error, or it falls out of step with the encoding end. As a peer can't be relied on for that,
+     * the encoding end calls {@link #resetOnNextFrame()} on any answer but success, and the next frame
+     * starts the session afresh.
+     */
+    public static class Session {
+        // The index of each string sent, when encoding
+        private final Map<String, Integer> indexes = new HashMap<>();
+        // The strings received, when decoding
+        private final List<String> strings = new ArrayList<>();
+        private long stringBytes;
+        // The last value sent of each envelope field, by its bit
+        private final Map<Integer, Object> envelope = new HashMap<>();
+        // Set from the thread reading the answers, while another encodes
+        private volatile boolean resetPending;
+
+        /**
+         * Makes the next frame encoded reset the session on both ends.
+         */
+        public void resetOnNextFrame() {
+            resetPending = true;
+        }
+
+        private void reset() {
+            resetPending = false;
+            indexes.clear();
+            strings.clear();
+            stringBytes = 0;
+            envelope.clear();
+        }
+
+        private boolean isFull() {
+            return indexes.size() >= maxSessionStrings || stringBytes >= maxSessionBytes;
+        }
+
+        // Returns the bits of the fields that match the envelope, and puts the others into it
+        private int inherit(PacoEvent event, int bits) {
+            int inherited = 0;
+            for (int bit = 1; bit <= bits; bit <<= 1) {
+                if ((bits & bit) == 0) {
+                    continue;
+                }
+                final Object value = getEnvelopeField(event, bit);
+                if (value.equals(envelope.get(bit))) {
+                    inherited |= bit;
+                } else {
+                    envelope.put(bit, value);
+                }
+            }
+            return inherited;
+        }
+
+        // The reverse of inherit(), for an event whose other fields have been read
+        private void restore(PacoEvent event, int bits, int inherited) {
+            for (int bit = 1; bit <= bits; bit <<= 1) {
+                if ((bits & bit) == 0) {
+                    continue;
+                }
+                if ((inherited & bit) == 0) {
+                    envelope.put(bit, getEnvelopeField(event, bit));
+                    continue;
+                }
+                final Object value = envelope.get(bit);
+                if (value == null) {
+                    throw new IllegalArgumentException("Inherited field " + Integer.numberOfTrailingZeros(bit)
+                            + " is not in the envelope");
+                }
+                setEnvelopeField(event, bit, value);
+            }
+        }
+    }
+
+    private static Object getEnvelopeField(PacoEvent event, int bit) {
+        switch (bit) {
+            case experimentIdBit:
+                return event.getExperimentId();
+            case whoBit:
+                return event.getWho();
+            case appIdBit:
+                return event.getAppId();
+            case pacoVersionBit:
+                return event.getPacoVersion();
+            case experimentNameBit:
+                return event.getExperimentName();
+            case experimentVersionBit:
+                return event.getExperimentVersion();
+            case timezoneBit:
+                return event.getTimezone();
+            case experimentGroupNameBit:
+                return event.getExperimentGroupName();
+            default:
+                throw new IllegalArgumentException("Not an envelope field: " + bit);
+        }
+    }
+
+    private static void setEnvelopeField(PacoEvent event, int bit, Object value) {
+        switch (bit) {
+            case experimentIdBit:
+                event.setExperimentId((Long) value);
+                break;
+            case whoBit:
+                event.setWho((String) value);
+                break;
+            case appIdBit:
+                event.setAppId((String) value);
+                break;
+            case pacoVersionBit:
+                event.setPaco_version((String) value);
+                break;
+            case experimentNameBit:
+                event.setExperimentName((String) value);
+                break;
+            case experimentVersionBit:
+                event.setExperimentVersion((Integer) value);
+                break;
+            case timezoneBit:
+                event.setTimezone((String) value);
+                break;
+            case experimentGroupNameBit:
+                event.setExperimentGroupName((String) value);
+                break;
+            default:
+                throw new IllegalArgumentException("Not an envelope field: " + bit);
+        }
+    }
+
+    private static class Encoder {
+        private final Session session;
+        // The session's if there is one, so indexes carry on from the frames before
+        private final Map<String, Integer> dictionary;
+        // The strings new in this frame
+        private final List<byte[]> strings = new ArrayList<>();
+        private byte[] body = new byte[1024];
+        private int size;
+        private long baseMillis;
+
+        Encoder(Session session) {
+            this.session = session;
+            this.dictionary = session != null ? session.indexes : new HashMap<>();
+        }
+
+        byte[] encode(List<PacoEvent> events) {
+            int flags = 0;
+            if (session != null && (session.resetPending || session.isFull())) {
+                session.reset();
+                flags |= resetSessionFlag;
+            }
+            baseMillis = baseMillis(events);
+            putVarint(events.size());
+            putVarint(zigzag(baseMillis));
+            for (PacoEvent event : events) {
+                putEvent(event);
+            }
+
+            final byte[] eventBytes = body;
+            final int eventSize = size;
+            body = new byte[eventSize + 16 * strings.size() + 8];
+            size = 0;
+            if (session != null) {
+                putVarint(flags);
+            }
+            putVarint(strings.size());
+            for (byte[] string : strings) {
+                putVarint(string.length);
+                putBytes(string, string.length);
+            }
+            putBytes(eventBytes, eventSize);
+            return Arrays.copyOf(body, size);
+        }
+
+        private static long baseMillis(List<PacoEvent> events) {
+            for (PacoEvent event : events) {
+                if (event.getResponseTimeMillis() != Long.MIN_VALUE) {
+                    return event.getResponseTimeMillis();
+                }
+            }
+            return 0;
+        }
+
+        private void putEvent(PacoEvent event) {
+            final long responseTimeMillis = event.getResponseTimeMillis();
+            final int mask = (event.getId() != null ? idBit : 0)
+                    | (event.getExperimentId() != null ? experimentIdBit : 0)
+                    | (event.getWho() != null ? whoBit : 0)
+                    | (event.getWhen() != null ? whenBit : 0)
+                    | (event.getAppId() != null ? appIdBit : 0)
+                    | (event.getPacoVersion() != null ? pacoVersionBit : 0)
+                    | (event.getExperimentName() != null ? experimentNameBit : 0)
+                    | (responseTimeMillis != Long.MIN_VALUE ? responseTimeBit : 0)
+                    | (event.getScheduledTime() != null ? scheduledTimeBit : 0)
+                    | (event.getBlobs() != null ? blobsBit : 0)
+                    | (event.getExperimentVersion() != null ? experimentVersionBit : 0)
+                    | (event.getTimezone() != null ? timezoneBit : 0)
+                    | (event.getExperimentGroupName() != null ? experimentGroupNameBit : 0)
+                    | (event.getActionTriggerId() != null ? actionTriggerIdBit : 0)
+                    | (event.getActionTriggerSpecId() != null ? actionTriggerSpecIdBit : 0)
+                    | (event.getActionId() != null ? actionIdBit : 0)
+                    | (event.getSortDate() != null ? sortDateBit : 0)
+                    | (event.getWhat() != null ? responsesBit : 0);
+            putVarint(mask);
+            int inherited = 0;
+            if (session != null) {
+                inherited = session.inherit(event, mask & envelopeBits);
+                putVarint(inherited);
+            }
+            final int written = mask & ~inherited;
+            if ((written & idBit) != 0) {
+                putVarint(zigzag(event.getId()));
+            }
+            if ((written & experimentIdBit) != 0) {
+                putVarint(zigzag(event.getExperimentId()));
+            }
+            if ((written & whoBit) != 0) {
+                putString(event.getWho(), 0);
+            }
+            if ((written & whenBit) != 0) {
+                putVarint(zigzag(event.getWhen().getMillis() - baseMillis));
+            }
+            if ((written & appIdBit) != 0) {
+                putString(event.getAppId(), 0);
+            }
+            if ((written & pacoVersionBit) != 0) {
+                putString(event.getPacoVersion(), 0);
+            }
+            if ((written & experimentNameBit) != 0) {
+                putString(event.getExperimentName(), 0);
+            }
+            if ((written & responseTimeBit) != 0) {
+                putTime(responseTimeMillis, event.getResponseTimeZone());
+            }
+            if ((written & scheduledTimeBit) != 0) {
+                putTime(event.getScheduledTime().getMillis(), event.getScheduledTime().getZone());
+            }
+            if ((written & blobsBit) != 0) {
+                putVarint(event.getBlobs().length);
+                for (String blob : event.getBlobs()) {
+                    putString(blob, 0);
+                }
+            }
+            if ((written & experimentVersionBit) != 0) {
+                putVarint(zigzag(event.getExperimentVersion()));
+            }
+            if ((written & timezoneBit) != 0) {
+                putString(event.getTimezone(), 0);
+            }
+            if ((written & experimentGroupNameBit) != 0) {
+                putString(event.getExperimentGroupName(), 0);
+            }
+            if ((written & actionTriggerIdBit) != 0) {
+                putVarint(zigzag(event.getActionTriggerId()));
+            }
+            if ((written & actionTriggerSpecIdBit) != 0) {
+                putVarint(zigzag(event.getActionTriggerSpecId()));
+            }
+            if ((written & actionIdBit) != 0) {
+                putVarint(zigzag(event.getActionId()));
+            }
+            if ((written & sortDateBit) != 0) {
+                putVarint(zigzag(event.getSortDate().getMillis() - baseMillis));
+            }
+            if ((written & responsesBit) != 0) {
+                putVarint(event.getWhat().size());
+                for (Output output : event.getWhat()) {
+                    if (output == null) {
+                        putVarint(nullOutputTag);
+                        continue;
+                    }
+                    putString(output.getName(), 1);
+                    putString(output.getValue(), 0);
+                }
+            }
+        }
+
+        private void putTime(long millis, DateTimeZone zone) {
+            putVarint(zigzag(millis - baseMillis));
+            putVarint(zigzag(zone.getOffset(millis) / 1000));
+        }
+
+        private void putString(String value, int tagOffset) {
+            if (value == null) {
+                putVarint(tagOffset + nullTag);
+            } else if (isCanonicalInteger(value)) {
+                putVarint(tagOffset + integerTag);
+                putVarint(zigzag(Long.parseLong(value)));
+            } else {
+                Integer index = dictionary.get(value);
+                if (index == null) {
+                    index = dictionary.size();
+                    dictionary.put(value, index);
+                    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    strings.add(bytes);
+                    if (session != null) {
+                        session.stringBytes += bytes.length;
+                    }
+                }
+                putVarint(tagOffset + firstStringTag + index);
+            }
+        }
+
+        private void putVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                body[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            body[size++] = (byte) value;
+        }
+
+        private void putBytes(byte[] bytes, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, 0, body, size, length);
+            size += length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > body.length) {
+                body = Arrays.copyOf(body, Math.max(body.length * 2, size + extra));
+            }
+        }
+    }
+
+    private static class Decoder {
+        private final byte[] payload;
+        private final Session session;
+        // The session's if there is one, with the strings of this frame added
+        private final List<String> strings;
+        private int position;
+        private long baseMillis;
+
+        Decoder(byte[] payload, Session session) {
+            this.payload = payload;
+            this.session = session;
+            this.strings = session != null ? session.strings : new ArrayList<>();
+        }
+
+        List<PacoEvent> decode() {
+            if (session != null) {
+                final long flags = readVarint();
+                if ((flags & ~resetSessionFlag) != 0) {
+                    throw new IllegalArgumentException("Unknown session flags " + flags);
+                }
+                if ((flags & resetSessionFlag) != 0) {
+                    session.reset();
+                }
+            }
+            final int stringCount = count();
+            for (int i = 0; i < stringCount; i++) {
+                final int length = count();
+                strings.add(new String(payload, position, length, StandardCharsets.UTF_8));
+                position += length;
+            }
+            final int eventCount = count();
+            baseMillis = unzigzag(readVarint());
+            final List<PacoEvent> events = new ArrayList<>(eventCount);
+            for (int i = 0; i < eventCount; i++) {
+                events.add(readEvent());
+            }
+            if (position != payload.length) {
+                throw new IllegalArgumentException("Trailing bytes after binary events");
+            }
+            return events;
+        }
+
+        private PacoEvent readEvent() {
+            final long mask = readVarint();
+            long inherited = 0;
+            if (session != null) {
+                inherited = readVarint();
+                if ((inherited & ~(mask & envelopeBits)) != 0) {
+                    throw new IllegalArgumentException("Invalid inherited fields " + inherited);
+                }
+            }
+            final long written = mask & ~inherited;
+            final PacoEvent event = new PacoEvent();
+            if ((written & idBit) != 0) {
+                event.setId(unzigzag(readVarint()));
+            }
+            if ((written & experimentIdBit) != 0) {
+                event.setExperimentId(unzigzag(readVarint()));
+            }
+            if ((written & whoBit) != 0) {
+                event.setWho(readString(0));
+            }
+            if ((written & whenBit) != 0) {
+                event.setWhen(new DateTime(baseMillis + unzigzag(readVarint())));
+            }
+            if ((written & appIdBit) != 0) {
+                event.setAppId(readString(0));
+            }
+            if ((written & pacoVersionBit) != 0) {
+                event.setPaco_version(readString(0));
+            }
+            if ((written & experimentNameBit) != 0) {
+                event.setExperimentName(readString(0));
+            }
+            if ((written & responseTimeBit) != 0) {
+                event.setResponseTime(readTime());
+            }
+            if ((written & scheduledTimeBit) != 0) {
+                event.setScheduledTime(readTime());
+            }
+            if ((written & blobsBit) != 0) {
+                final String[] blobs = new String[count()];
+                for (int i = 0; i < blobs.length; i++) {
+                    blobs[i] = readString(0);
+                }
+                event.setBlobs(blobs);
+            }
+            if ((written & experimentVersionBit) != 0) {
+                event.setExperimentVersion((int) unzigzag(readVarint()));
+            }
+            if ((written & timezoneBit) != 0) {
+                event.setTimezone(readString(0));
+            }
+            if ((written & experimentGroupNameBit) != 0) {
+                event.setExperimentGroupName(readString(0));
+            }
+            if ((written & actionTriggerIdBit) != 0) {
+                event.setActionTriggerId(unzigzag(readVarint()));
+            }
+            if ((written & actionTriggerSpecIdBit) != 0) {
+                event.setActionTriggerSpecId(unzigzag(readVarint()));
+            }
+            if ((written & actionIdBit) != 0) {
+                event.setActionId(unzigzag(readVarint()));
+            }
+            if ((written & sortDateBit) != 0) {
+                event.setSortDate(new DateTime(baseMillis + unzigzag(readVarint())));
+            }
+            if ((written & responsesBit) != 0) {
+                final int outputCount = count();
+                final List<Output> outputs = new ArrayList<>(outputCount);
+                for (int i = 0; i < outputCount; i++) {
+                    if (payload[position] == nullOutputTag) {
+                        position++;
+                        outputs.add(null);
+                        continue;
+                    }
+                    final String name = readString(1);
+                    outputs.add(new Output(name, readString(0)));
+                }
+                event.setWhat(outputs);
+            }
+            if (session != null) {
+                session.restore(event, (int) mask & envelopeBits, (int) inherited);
+            }
+            return event;
+        }
+
+        private DateTime readTime() {
+            final long millis = baseMillis + unzigzag(readVarint());
+            final int offsetSeconds = (int) unzigzag(readVarint());
+            return new DateTime(millis, DateTimeZone.forOffsetMillis(offsetSeconds * 1000));
+        }
+
+        private String readString(int tagOffset) {
+            final long tag = readVarint() - tagOffset;
+            if (tag == nullTag) {
+                return null;
+            } else if (tag == integerTag) {
+                return Long.toString(unzigzag(readVarint()));
+            } else if (tag >= firstStringTag && tag - firstStringTag < strings.size()) {
+                return strings.get((int) (tag - firstStringTag));
+            }
+            throw new IllegalArgumentException("Invalid string reference " + tag);
+        }
+
+        // A count that must fit in what is left of the payload, at a byte per item
+        private int count() {
+            final long count = readVarint();
+            if (count < 0 || count > payload.length - position) {
+                throw new IllegalArgumentException("Invalid count " + count);
+            }
+            return (int) count;
+        }
+
+        private long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = payload[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Varint is too long");
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // True for strings that Long.toString() would produce, so the integer can stand in for them
+    static boolean isCanonicalInteger(String value) {
+        final int length = value.length();
+        if (length == 0 || length > 19) {
+            return false;
+        }
+        int start = value.charAt(0) == '-' ? 1 : 0;
+        if (start == length || (value.charAt(start) == '0' && (length > start + 1 || start == 1))) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        // 19 digits may overflow
+        if (length - start == 19) {
+            try {
+                Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
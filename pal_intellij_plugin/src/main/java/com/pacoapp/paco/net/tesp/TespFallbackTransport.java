@@ -0,0 +1,56 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.paco.net.tesp;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Tries each transport in order and uses the first one that connects, e.g. a Unix domain socket
+ * with loopback TCP as the fallback.
+ */
+public class TespFallbackTransport implements TespTransport {
+    private static final Logger log = Logger.getLogger(TespFallbackTransport.class.getName());
+
+    private final List<TespTransport> transports;
+
+    public TespFallbackTransport(TespTransport... transports) {
+        this.transports = Arrays.asList(transports);
+    }
+
+    @Override
+    public SocketChannel open(int connectionTimeoutMs) throws IOException {
+        IOException lastError = null;
+        for (TespTransport transport : transports) {
+            try {
+                return transport.open(connectionTimeoutMs);
+            } catch (IOException e) {
+                log.fine("Could not connect to " + transport.describe() + ": " + e.getMessage());
+                lastError = e;
+            }
+        }
+        throw lastError != null ? lastError : new IOException("No transport to connect with");
+    }
+
+    @Override
+    public String describe() {
+        return transports.stream().map(TespTransport::describe).collect(Collectors.joining(" or "));
+    }
+}
@@ -0,0 +1,209 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp;
+
+import com.pacoapp.paco.net.tesp.message.TespMessage;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEventDeflated;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestEncoded;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Builds an AddEvent frame from a UTF-8 JSON payload written to it, e.g. by a JSON generator, straight
+ * into buffers from a {@link TespBufferPool}. The header goes first with a placeholder for the payload
+ * size, which is filled in by {@link #finish()}, so the payload is encoded once and never held as a
+ * String or array.
+ *
+ * With a deflate threshold, a payload that grows past it is switched to a deflated AddEvent frame: what
+ * has been written so far is compressed into a new frame, and everything after that is compressed as
+ * it is written.
+ *
+ * Either {@link #finish()} or {@link #abort()} must be called, so the buffers go back to the pool.
+ * {@link #close()} does neither, so the stream can be handed to writers that close it.
+ */
+public class TespFrameOutputStream extends OutputStream {
+    private static final int deflateBufferSize = 8192;
+
+    private final TespBufferPool pool;
+    private final int deflateThresholdBytes;
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final byte[] singleByte = new byte[1];
+    private ByteBuffer current;
+    private int protocolVersion;
+    private int code;
+    private long bytesWritten;
+    private Deflater deflater;
+    private byte[] deflateBuffer;
+    private boolean done;
+
+    /**
+     * @param deflateThresholdBytes payloads of at least this many bytes are deflated; negative to never
+     *                              deflate, for servers that don't support protocol version 2
+     */
+    public TespFrameOutputStream(TespBufferPool pool, int deflateThresholdBytes) {
+        this.pool = pool;
+        this.deflateThresholdBytes = deflateThresholdBytes;
+        startFrame(TespCodec.baseProtocolVersion, TespMessage.tespCodeRequestAddEvent);
+    }
+
+    /**
+     * The number of payload bytes written to the stream, before any compression.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (done) {
+            throw new IOException("The frame has already been finished");
+        }
+        bytesWritten += len;
+        if (deflater != null) {
+            deflate(b, off, len);
+            return;
+        }
+        put(b, off, len);
+        if (deflateThresholdBytes >= 0 && bytesWritten >= deflateThresholdBytes) {
+            switchToDeflate();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Fills in the payload size and returns the frame as a request. The stream can't be written to
+     * afterwards.
+     */
+    public TespRequestEncoded finish() throws IOException {
+        if (done) {
+            throw new IOException("The frame has already been finished");
+        }
+        if (deflater != null) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                drainDeflater();
+            }
+            deflater.end();
+        }
+        done = true;
+        long frameSize = 0;
+        for (ByteBuffer buffer : buffers) {
+            frameSize += buffer.position();
+        }
+        final long payloadSize = frameSize - TespCodec.payloadOffset;
+        if (payloadSize > Integer.MAX_VALUE) {
+            abortBuffers();
+            throw new IOException("Payload of " + payloadSize + " bytes is too large for a frame");
+        }
+        buffers.get(0).putInt(TespCodec.payloadSizeOffset, (int) payloadSize);
+        for (ByteBuffer buffer : buffers) {
+            buffer.flip();
+        }
+        return new TespRequestEncoded(protocolVersion, code, (int) payloadSize, buffers);
+    }
+
+    /**
+     * Discards the frame and returns its buffers to the pool.
+     */
+    public void abort() {
+        if (done) {
+            return;
+        }
+        done = true;
+        if (deflater != null) {
+            deflater.end();
+        }
+        abortBuffers();
+    }
+
+    private void abortBuffers() {
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        buffers.clear();
+    }
+
+    private void startFrame(int protocolVersion, int code) {
+        this.protocolVersion = protocolVersion;
+        this.code = code;
+        current = pool.acquire();
+        buffers.add(current);
+        current.put((byte) protocolVersion);
+        current.put((byte) code);
+        // The payload size, filled in once it is known
+        current.putInt(0);
+    }
+
+    private void put(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (!current.hasRemaining()) {
+                current = pool.acquire();
+                buffers.add(current);
+            }
+            final int count = Math.min(len, current.remaining());
+            current.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void switchToDeflate() {
+        final List<ByteBuffer> plain = new ArrayList<>(buffers);
+        buffers.clear();
+        // Favour speed, as in TespRequestAddEventDeflated
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        deflateBuffer = new byte[deflateBufferSize];
+        startFrame(TespRequestAddEventDeflated.minProtocolVersion, TespMessage.tespCodeRequestAddEventDeflated);
+        final byte[] chunk = new byte[deflateBufferSize];
+        for (int i = 0; i < plain.size(); i++) {
+            final ByteBuffer buffer = plain.get(i);
+            buffer.flip();
+            if (i == 0) {
+                buffer.position(TespCodec.payloadOffset);
+            }
+            while (buffer.hasRemaining()) {
+                final int count = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, count);
+                deflate(chunk, 0, count);
+            }
+            pool.release(buffer);
+        }
+    }
+
+    private void deflate(byte[] b, int off, int len) {
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            drainDeflater();
+        }
+    }
+
+    private void drainDeflater() {
+        put(deflateBuffer, 0, deflater.deflate(deflateBuffer));
+    }
+}
@@ -15,53 +15,270 @@
 package com.pacoapp.paco.net.tesp;
 
 import com.pacoapp.paco.net.tesp.message.TespMessage;
+import com.pacoapp.paco.net.tesp.message.TespPayload;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestEncoded;
 
 import java.io.*;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
+/**
+ * Sends and receives TESP messages over a non-blocking {@link SocketChannel}.
+ *
+ * Messages passed to {@link #add} are only queued. {@link #flush} then writes everything queued so far
+ * with gathering writes, so the header and payload of a message, and several messages, go out together
+ * without being copied into one array first. With a {@link TespBufferPool}, String payloads are encoded
+ * straight into pooled direct buffers, which are returned to the pool after the flush. Writing and
+ * reading may happen on different threads, but each side must only be used by one thread at a time.
+ */
 public class TespMessageSocket<R extends TespMessage, S extends TespMessage> {
     private static final int defaultTimeoutMs = 5000;
 
     public static final Logger log = Logger.getLogger(TespMessageSocket.class.getName());
 
+    private static final int readBufferSize = 8192;
+    private static final int initialQueueCapacity = 16;
+
     private final TespCodec tespCodec = TespCodec.getInstance();
 
-    private final Socket socket;
-    private final InputStream socketInputStream;
-    private final OutputStream socketOutputStream;
+    private final SocketChannel channel;
+    private final Selector readSelector;
+    private final Selector writeSelector;
 
     private final int timeoutMs;
-    private final boolean isAsync = false;
+    // Once set, a write blocked past this System.nanoTime() fails whatever is left of the timeout
+    private volatile boolean hasWriteDeadline;
+    private volatile long writeDeadlineNanos;
+    // Non-JDK channels (jnr Unix sockets) move a buffer's position to its limit even on a short
+    // write, so those get one buffer per write and the position is set from the returned count
+    private final boolean gatheringWrites;
+
+    // Read side
+    private final TespCodec.Decoder decoder = tespCodec.newDecoder();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+    private final Queue<R> received = new ArrayDeque<>();
+    private volatile long lastReadNanos = System.nanoTime();
+
+    // Write side. Header buffers are reused from one flush to the next.
+    private final TespBufferPool bufferPool;
+    private final TespCodec.PooledEncoder pooledEncoder;
+    private final Consumer<ByteBuffer> outgoingSink = this::queue;
+    private ByteBuffer[] outgoing = new ByteBuffer[initialQueueCapacity * 2];
+    private int outgoingCount = 0;
+    private ByteBuffer[] headers = new ByteBuffer[initialQueueCapacity];
+    private int headerCount = 0;
 
-    public TespMessageSocket(Socket socket) throws IOException {
-        this(socket, defaultTimeoutMs);
+    public TespMessageSocket(SocketChannel channel) throws IOException {
+        this(channel, defaultTimeoutMs);
     }
 
-    public TespMessageSocket(Socket socket, int timeout) throws IOException {
-        this.socket = socket;
-        socketOutputStream = socket.getOutputStream();
-        socketInputStream = socket.getInputStream();
+    public TespMessageSocket(SocketChannel channel, int timeout) throws IOException {
+        this(channel, timeout, null);
+    }
+
+    public TespMessageSocket(SocketChannel channel, TespBufferPool bufferPool) throws IOException {
+        this(channel, defaultTimeoutMs, bufferPool);
+    }
 
+    public TespMessageSocket(SocketChannel channel, int timeout, TespBufferPool bufferPool) throws IOException {
+        this.channel = channel;
         this.timeoutMs = timeout;
+        this.bufferPool = bufferPool;
+        this.pooledEncoder = bufferPool == null ? null : tespCodec.newPooledEncoder(bufferPool);
+        this.gatheringWrites = channel.provider() == SelectorProvider.provider();
+
+        channel.configureBlocking(false);
+        readSelector = channel.provider().openSelector();
+        writeSelector = channel.provider().openSelector();
+        channel.register(readSelector, SelectionKey.OP_READ);
+        channel.register(writeSelector, SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Makes writes fail with a {@link SocketTimeoutException} once they would block past
+     * {@code deadlineNanos}, a {@link System#nanoTime()}, even if the timeout hasn't passed yet.
+     */
+    public void setWriteDeadline(long deadlineNanos) {
+        writeDeadlineNanos = deadlineNanos;
+        hasWriteDeadline = true;
+    }
+
+    /**
+     * Queues a message to be written by the next {@link #flush}.
+     */
+    public void add(S message) {
+        if (message instanceof TespRequestEncoded) {
+            // Already a complete frame, header included
+            for (ByteBuffer buffer : ((TespRequestEncoded) message).getFrame()) {
+                queue(buffer);
+            }
+            return;
+        }
+        final ByteBuffer header = nextHeaderBuffer();
+        if (pooledEncoder != null) {
+            // The header has to go first, but is only complete once the payload is encoded
+            queue(header);
+            pooledEncoder.encode(message, header, outgoingSink);
+            return;
+        }
+        tespCodec.encodeHeader(message, header);
+        queue(header);
+        if (message.hasPayload() && message.payloadSize() > 0) {
+            queue(ByteBuffer.wrap(((TespPayload<?>) message).getEncodedPayload()));
+        }
+    }
+
+    private long write(int first) throws IOException {
+        if (gatheringWrites) {
+            return channel.write(outgoing, first, outgoingCount - first);
+        }
+        final ByteBuffer buffer = outgoing[first];
+        final int position = buffer.position();
+        final int written = channel.write(buffer);
+        buffer.position(position + written);
+        return written;
+    }
+
+    /**
+     * Writes all queued messages, blocking until they are handed to the OS. Throws a
+     * {@link SocketTimeoutException} if the peer doesn't accept any data for the timeout, or by the
+     * write deadline.
+     */
+    public void flush() throws IOException {
+        try {
+            int first = 0;
+            while (first < outgoingCount) {
+                if (write(first) == 0) {
+                    awaitWritable();
+                }
+                while (first < outgoingCount && !outgoing[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        } finally {
+            if (bufferPool != null) {
+                for (int i = 0; i < outgoingCount; i++) {
+                    bufferPool.release(outgoing[i]);
+                }
+            }
+            Arrays.fill(outgoing, 0, outgoingCount, null);
+            outgoingCount = 0;
+            headerCount = 0;
+        }
     }
 
-    public void add(S message) throws IOException {
-      socketOutputStream.write(tespCodec.encode(message));
-      socketOutputStream.flush();
+    /**
+     * Blocks until the next complete message arrives. Throws a {@link SocketTimeoutException}
+     * if nothing is received for the timeout.
+     */
+    public R read() throws IOException {
+        return read(timeoutMs);
+    }
+
+    /**
+     * Like {@link #read()}, with a different timeout. A timeout leaves any partially received message
+     * in place, so reading can simply be retried.
+     */
+    @SuppressWarnings("unchecked")
+    public R read(int readTimeoutMs) throws IOException {
+        while (received.isEmpty()) {
+            readBuffer.clear();
+            final int count = channel.read(readBuffer);
+            if (count < 0) {
+                throw new EOFException(decoder.hasPartialMessage()
+                        ? "Stream closed before a message is finished"
+                        : "Stream closed by the peer");
+            } else if (count == 0) {
+                awaitReadable(readTimeoutMs);
+                continue;
+            }
+            lastReadNanos = System.nanoTime();
+            readBuffer.flip();
+            decoder.decode(readBuffer, message -> received.add((R) message));
+        }
+        return received.poll();
+    }
+
+    /**
+     * Whether part of a message has been received, but not all of it.
+     */
+    public boolean hasPartialMessage() {
+        return decoder.hasPartialMessage();
+    }
+
+    /**
+     * The {@link System#nanoTime()} when data was last received.
+     */
+    public long getLastReadNanos() {
+        return lastReadNanos;
     }
 
     public void close() {
         log.info("Closing socket");
         try {
-            socketOutputStream.flush();
-            socket.close();
+            channel.close();
+            readSelector.close();
+            writeSelector.close();
         } catch (IOException e) {
             log.warning("Exception closing TespMessageSocket socket: " + e.getMessage());
         }
     }
 
     public boolean isBroken() {
-        return !socket.isConnected();
+        return !channel.isOpen() || !channel.isConnected();
+    }
+
+    private void awaitReadable(int readTimeoutMs) throws IOException {
+        if (readSelector.select(readTimeoutMs) == 0) {
+            if (!channel.isOpen()) {
+                throw new EOFException("Socket closed");
+            }
+            throw new SocketTimeoutException("No data received for " + readTimeoutMs + "ms");
+        }
+        readSelector.selectedKeys().clear();
+    }
+
+    private void awaitWritable() throws IOException {
+        long waitMs = timeoutMs;
+        if (hasWriteDeadline) {
+            final long remainingMs = TimeUnit.NANOSECONDS.toMillis(writeDeadlineNanos - System.nanoTime());
+            if (remainingMs <= 0) {
+                throw new SocketTimeoutException("Could not write before the write deadline");
+            }
+            waitMs = Math.min(waitMs, remainingMs);
+        }
+        if (writeSelector.select(waitMs) == 0) {
+            throw new SocketTimeoutException("Could not write for " + waitMs + "ms");
+        }
+        writeSelector.selectedKeys().clear();
+    }
+
+    private ByteBuffer nextHeaderBuffer() {
+        if (headerCount == headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        if (headers[headerCount] == null) {
+            headers[headerCount] = ByteBuffer.allocate(TespCodec.headerWithPayloadSizeLength);
+        }
+        final ByteBuffer header = headers[headerCount++];
+        header.clear();
+        return header;
+    }
+
+    private void queue(ByteBuffer buffer) {
+        if (outgoingCount == outgoing.length) {
+            outgoing = Arrays.copyOf(outgoing, outgoing.length * 2);
+        }
+        outgoing[outgoingCount++] = buffer;
     }
 }
@@ -0,0 +1,49 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.paco.net.tesp;
+
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects over a Unix domain socket, which skips the loopback TCP stack. Connecting to a local
+ * socket doesn't block on the network, so the connection timeout isn't needed.
+ */
+public class TespUnixSocketTransport implements TespTransport {
+    private final File path;
+
+    public TespUnixSocketTransport(String path) {
+        this.path = new File(path);
+    }
+
+    @Override
+    public SocketChannel open(int connectionTimeoutMs) throws IOException {
+        if (!path.exists()) {
+            throw new FileNotFoundException("Socket " + path.getAbsolutePath() + " does not exist");
+        }
+        return UnixSocketChannel.open(new UnixSocketAddress(path));
+    }
+
+    @Override
+    public String describe() {
+        return path.getAbsolutePath();
+    }
+}
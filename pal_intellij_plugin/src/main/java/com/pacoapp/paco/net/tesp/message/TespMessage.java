@@ -14,6 +14,7 @@
 
 package com.pacoapp.paco.net.tesp.message;
 
+import com.pacoapp.paco.net.tesp.TespCodec;
 import com.pacoapp.paco.net.tesp.message.request.*;
 import com.pacoapp.paco.net.tesp.message.response.*;
 
@@ -24,6 +25,13 @@ public abstract class TespMessage {
     public static final int tespCodeRequestAllowlistDataOnly = 0x06;
     public static final int tespCodeRequestAllData = 0x08;
     public static final int tespCodeRequestPing = 0x0A;
+    public static final int tespCodeRequestAddEventDeflated = 0x0B;
+    public static final int tespCodeRequestHandshake = 0x0C;
+    public static final int tespCodeRequestAddEventBinary = 0x0D;
+    public static final int tespCodeRequestAddEventSession = 0x0F;
+    public static final int tespCodeRequestChunkStart = 0x05;
+    public static final int tespCodeRequestChunkContinue = 0x07;
+    public static final int tespCodeRequestChunkEnd = 0x09;
     public static final int tespCodeResponseSuccess = 0x80;
     public static final int tespCodeResponseError = 0x81;
     public static final int tespCodeResponsePaused = 0x82;
@@ -41,6 +49,8 @@ public abstract class TespMessage {
             return new TespRequestAllData();
         } else if (code == tespCodeRequestPing) {
             return new TespRequestPing();
+        } else if (code == tespCodeRequestHandshake) {
+            return new TespRequestHandshake();
         } else if (code == tespCodeResponseSuccess) {
             return new TespResponseSuccess();
         } else if (code == tespCodeResponsePaused) {
@@ -53,6 +63,15 @@ public abstract class TespMessage {
     public static TespMessage fromCode(int code, byte[] encodedPayload) {
         if (code == tespCodeRequestAddEvent) {
             return TespRequestAddEvent.withEncodedPayload(encodedPayload);
+        } else if (code == tespCodeRequestAddEventDeflated) {
+            return TespRequestAddEventDeflated.withEncodedPayload(encodedPayload);
+        } else if (code == tespCodeRequestAddEventBinary) {
+            return TespRequestAddEventBinary.withEncodedPayload(encodedPayload);
+        } else if (code == tespCodeRequestAddEventSession) {
+            return TespRequestAddEventSession.withEncodedPayload(encodedPayload);
+        } else if (code == tespCodeRequestChunkStart || code == tespCodeRequestChunkContinue
+                || code == tespCodeRequestChunkEnd) {
+            return TespRequestChunk.withEncodedPayload(code, encodedPayload);
         } else if (code == tespCodeResponseError) {
             return TespResponseError.withEncodedPayload(encodedPayload);
         } else if (code == tespCodeResponseInvalidRequest) {
@@ -72,5 +91,10 @@ public abstract class TespMessage {
         return 0;
     }
 
+    // The protocol version written in the frame header, the lowest one that defines the message
+    public int getProtocolVersion() {
+        return TespCodec.baseProtocolVersion;
+    }
+
     public abstract int getCode();
 }
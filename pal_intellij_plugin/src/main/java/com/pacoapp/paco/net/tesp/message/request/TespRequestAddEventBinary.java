@@ -0,0 +1,104 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp.message.request;
+
+import com.pacoapp.paco.net.tesp.TespEventCodec;
+import com.pacoapp.paco.net.tesp.message.TespMessage;
+import com.pacoapp.paco.net.tesp.message.TespPayload;
+import com.pacoapp.paco.shared.model2.PacoEvent;
+
+import java.util.List;
+
+/**
+ * An AddEvent request carrying a batch of events in the compact binary encoding of
+ * {@link TespEventCodec} rather than as JSON. It needs protocol version 3, so it is only sent once
+ * the server has agreed to it in the handshake.
+ */
+public class TespRequestAddEventBinary extends TespRequest implements TespPayload<List<PacoEvent>> {
+    public static final int minProtocolVersion = 3;
+
+    private List<PacoEvent> payload;
+    private byte[] encodedPayload;
+
+    private TespRequestAddEventBinary() {}
+
+    public static TespRequestAddEventBinary withPayload(List<PacoEvent> payload) {
+        final TespRequestAddEventBinary request = new TespRequestAddEventBinary();
+        request.setPayload(payload);
+        return request;
+    }
+
+    public static TespRequestAddEventBinary withEncodedPayload(byte[] bytes) {
+        final TespRequestAddEventBinary request = new TespRequestAddEventBinary();
+        request.setPayloadWithEncoded(bytes);
+        return request;
+    }
+
+    @Override
+    public List<PacoEvent> getPayload() {
+        return payload;
+    }
+
+    @Override
+    public byte[] getEncodedPayload() {
+        if (encodedPayload == null && payload != null) {
+            encodedPayload = TespEventCodec.encode(payload);
+        }
+        return encodedPayload;
+    }
+
+    @Override
+    public void setPayload(List<PacoEvent> payload) {
+        if (payload == null) {
+            throw new IllegalArgumentException("Payload must not be null");
+        }
+
+        if (this.payload == null) {
+            this.payload = payload;
+        } else {
+            throw new IllegalStateException("Payload cannot be set twice");
+        }
+    }
+
+    @Override
+    public void setPayloadWithEncoded(byte[] bytes) {
+        if (bytes == null) {
+            throw new IllegalArgumentException("Payload must not be null");
+        }
+
+        encodedPayload = bytes;
+        setPayload(TespEventCodec.decode(bytes));
+    }
+
+    @Override
+    public boolean hasPayload() {
+        return true;
+    }
+
+    @Override
+    public int payloadSize() {
+        return getEncodedPayload().length;
+    }
+
+    @Override
+    public int getCode() {
+        return TespMessage.tespCodeRequestAddEventBinary;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return minProtocolVersion;
+    }
+}
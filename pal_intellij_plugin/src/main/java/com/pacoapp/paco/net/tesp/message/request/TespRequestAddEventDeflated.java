@@ -0,0 +1,145 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.paco.net.tesp.message.request;
+
+import com.pacoapp.paco.net.tesp.message.TespMessage;
+import com.pacoapp.paco.net.tesp.message.TespPayload;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An AddEvent request whose UTF-8 JSON payload is zlib-compressed on the wire. It needs protocol
+ * version 2, so it is only sent once the server has agreed to it in the handshake.
+ */
+public class TespRequestAddEventDeflated extends TespRequest implements TespPayload<String> {
+    public static final int minProtocolVersion = 2;
+    private static final int bufferSize = 8192;
+
+    private String payload;
+    private byte[] encodedPayload;
+
+    private TespRequestAddEventDeflated() {}
+
+    public static TespRequestAddEventDeflated withPayload(String payload) {
+        final TespRequestAddEventDeflated request = new TespRequestAddEventDeflated();
+        request.setPayload(payload);
+        return request;
+    }
+
+    public static TespRequestAddEventDeflated withEncodedPayload(byte[] bytes) {
+        final TespRequestAddEventDeflated request = new TespRequestAddEventDeflated();
+        request.setPayloadWithEncoded(bytes);
+        return request;
+    }
+
+    @Override
+    public String getPayload() {
+        return payload;
+    }
+
+    @Override
+    public byte[] getEncodedPayload() {
+        if (encodedPayload == null && payload != null) {
+            encodedPayload = deflate(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        return encodedPayload;
+    }
+
+    @Override
+    public void setPayload(String payload) {
+        if (payload == null) {
+            throw new IllegalArgumentException("Payload must not be null");
+        }
+
+        if (this.payload == null) {
+            this.payload = payload;
+        } else {
+            throw new IllegalStateException("Payload cannot be set twice");
+        }
+    }
+
+    @Override
+    public void setPayloadWithEncoded(byte[] bytes) {
+        if (bytes == null) {
+            throw new IllegalArgumentException("Payload must not be null");
+        }
+
+        encodedPayload = bytes;
+        setPayload(new String(inflate(bytes), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean hasPayload() {
+        return true;
+    }
+
+    @Override
+    public int payloadSize() {
+        return getEncodedPayload().length;
+    }
+
+    @Override
+    public int getCode() {
+        return TespMessage.tespCodeRequestAddEventDeflated;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return minProtocolVersion;
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        // Favour speed: this runs on the sending thread, and JSON compresses well even so
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            final byte[] buffer = new byte[bufferSize];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            final byte[] buffer = new byte[bufferSize];
+            while (!inflater.finished()) {
+                final int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated deflated payload");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Invalid deflated payload: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp.message.request;
+
+import com.pacoapp.paco.net.tesp.TespEventCodec;
+import com.pacoapp.paco.net.tesp.message.TespMessage;
+import com.pacoapp.paco.net.tesp.message.TespPayload;
+import com.pacoapp.paco.shared.model2.PacoEvent;
+
+import java.util.List;
+
+/**
+ * An AddEvent request carrying a batch of events in the binary encoding of {@link TespEventCodec},
+ * relative to the batches sent before it on the same connection. As the encoding depends on those, the
+ * client encodes the request as it writes it to a connection, and the server decodes it with the
+ * {@link TespEventCodec.Session} of the connection it arrived on. It needs protocol version 4.
+ */
+public class TespRequestAddEventSession extends TespRequest implements TespPayload<List<PacoEvent>> {
+    public static final int minProtocolVersion = 4;
+
+    private List<PacoEvent> payload;
+    private byte[] encodedPayload;
+
+    private TespRequestAddEventSession() {}
+
+    public static TespRequestAddEventSession withPayload(List<PacoEvent> payload) {
+        final TespRequestAddEventSession request = new TespRequestAddEventSession();
+        request.setPayload(payload);
+        return request;
+    }
+
+    /**
+     * The payload stays encoded until {@link #decode(TespEventCodec.Session)} is called.
+     */
+    public static TespRequestAddEventSession withEncodedPayload(byte[] bytes) {
+        final TespRequestAddEventSession request = new TespRequestAddEventSession();
+        request.setPayloadWithEncoded(bytes);
+        return request;
+    }
+
+    /**
+     * Encodes the payload as the next frame of the session, replacing any earlier encoding.
+     */
+    public void encode(TespEventCodec.Session session) {
+        if (payload == null) {
+            throw new IllegalStateException("There is no payload to encode");
+        }
+        encodedPayload = TespEventCodec.encode(payload, session);
+    }
+
+    /**
+     * Decodes the payload as the next frame of the session. Throws an {@link IllegalArgumentException}
+     * if it is malformed.
+     */
+    public void decode(TespEventCodec.Session session) {
+        if (encodedPayload == null) {
+            throw new IllegalStateException("There is no payload to decode");
+        }
+        setPayload(TespEventCodec.decode(encodedPayload, session));
+    }
+
+    /**
+     * Null for a received request that hasn't been decoded yet.
+     */
+    @Override
+    public List<PacoEvent> getPayload() {
+        return payload;
+    }
+
+    @Override
+    public byte[] getEncodedPayload() {
+        if (encodedPayload == null) {
+            throw new IllegalStateException("The payload hasn't been encoded for a session yet");
+        }
+        return encodedPayload;
+    }
+
+    @Override
+    public void setPayload(List<PacoEvent> payload) {
+        if (payload == null) {
+            throw new IllegalArgumentException("Payload must not be null");
+        }
+
+        if (this.payload == null) {
+            this.payload = payload;
+        } else {
+            throw new IllegalStateException("Payload cannot be set twice");
+        }
+    }
+
+    @Override
+    public void setPayloadWithEncoded(byte[] bytes) {
+        if (bytes == null) {
+            throw new IllegalArgumentException("Payload must not be null");
+        }
+
+        encodedPayload = bytes;
+    }
+
+    @Override
+    public boolean hasPayload() {
+        return true;
+    }
+
+    @Override
+    public int payloadSize() {
+        return getEncodedPayload().length;
+    }
+
+    @Override
+    public int getCode() {
+        return TespMessage.tespCodeRequestAddEventSession;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return minProtocolVersion;
+    }
+}
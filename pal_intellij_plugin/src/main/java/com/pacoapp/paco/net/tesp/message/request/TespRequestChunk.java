@@ -0,0 +1,146 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.paco.net.tesp.message.request;
+
+import com.pacoapp.paco.net.tesp.message.TespMessage;
+import com.pacoapp.paco.net.tesp.message.TespPayload;
+
+import java.util.Arrays;
+
+/**
+ * One frame of a message that is sent in several frames, so that it never has to be built in memory
+ * as a whole. A chunked message is a start chunk, any number of continue chunks and an end chunk. The
+ * start chunk's payload begins with the code of the assembled message; the rest of the payloads,
+ * concatenated, are the assembled message's encoded payload.
+ *
+ * Other requests may be sent between the chunks. The server answers the assembled message once its
+ * end chunk arrives, and doesn't answer the other chunks. A start chunk replaces any message whose
+ * end chunk hasn't arrived. Chunks need protocol version 2.
+ */
+public class TespRequestChunk extends TespRequest implements TespPayload<byte[]> {
+    public static final int minProtocolVersion = 2;
+    private static final byte[] empty = new byte[0];
+
+    private final int code;
+    private byte[] payload;
+
+    private TespRequestChunk(int code) {
+        this.code = code;
+    }
+
+    public static TespRequestChunk start(int messageCode, byte[] bytes, int offset, int length) {
+        final byte[] payload = new byte[length + 1];
+        payload[0] = (byte) messageCode;
+        System.arraycopy(bytes, offset, payload, 1, length);
+        final TespRequestChunk chunk = new TespRequestChunk(TespMessage.tespCodeRequestChunkStart);
+        chunk.setPayload(payload);
+        return chunk;
+    }
+
+    public static TespRequestChunk next(byte[] bytes, int offset, int length) {
+        final TespRequestChunk chunk = new TespRequestChunk(TespMessage.tespCodeRequestChunkContinue);
+        chunk.setPayload(Arrays.copyOfRange(bytes, offset, offset + length));
+        return chunk;
+    }
+
+    public static TespRequestChunk end(byte[] bytes, int offset, int length) {
+        final TespRequestChunk chunk = new TespRequestChunk(TespMessage.tespCodeRequestChunkEnd);
+        chunk.setPayload(Arrays.copyOfRange(bytes, offset, offset + length));
+        return chunk;
+    }
+
+    public static TespRequestChunk withEncodedPayload(int code, byte[] bytes) {
+        final TespRequestChunk chunk = new TespRequestChunk(code);
+        chunk.setPayloadWithEncoded(bytes);
+        return chunk;
+    }
+
+    public boolean isStart() {
+        return code == TespMessage.tespCodeRequestChunkStart;
+    }
+
+    public boolean isEnd() {
+        return code == TespMessage.tespCodeRequestChunkEnd;
+    }
+
+    /**
+     * The code of the assembled message, only for a start chunk.
+     */
+    public int getMessageCode() {
+        if (!isStart()) {
+            throw new IllegalStateException("Only a start chunk carries the message code");
+        }
+        return payload[0] & 0xFF;
+    }
+
+    /**
+     * The part of the assembled message's payload carried by this chunk.
+     */
+    public byte[] getData() {
+        return isStart() ? Arrays.copyOfRange(payload, 1, payload.length) : payload;
+    }
+
+    @Override
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    @Override
+    public byte[] getEncodedPayload() {
+        return payload;
+    }
+
+    @Override
+    public void setPayload(byte[] payload) {
+        if (payload == null) {
+            throw new IllegalArgumentException("Payload must not be null");
+        }
+
+        if (this.payload == null) {
+            this.payload = payload;
+        } else {
+            throw new IllegalStateException("Payload cannot be set twice");
+        }
+    }
+
+    @Override
+    public void setPayloadWithEncoded(byte[] bytes) {
+        if (isStart() && (bytes == null || bytes.length == 0)) {
+            throw new IllegalStateException("A start chunk must carry the message code");
+        }
+        setPayload(bytes == null ? empty : bytes);
+    }
+
+    @Override
+    public boolean hasPayload() {
+        return true;
+    }
+
+    @Override
+    public int payloadSize() {
+        return payload.length;
+    }
+
+    @Override
+    public int getCode() {
+        return code;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return minProtocolVersion;
+    }
+}
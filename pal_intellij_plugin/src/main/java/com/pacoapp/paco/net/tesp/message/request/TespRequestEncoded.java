@@ -0,0 +1,64 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp.message.request;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A request whose whole frame, header included, has already been encoded into buffers, e.g. by a
+ * {@link com.pacoapp.paco.net.tesp.TespFrameOutputStream}. The buffers are written as they are and
+ * handed back to their pool afterwards, so the request can only be sent once.
+ */
+public class TespRequestEncoded extends TespRequest {
+    private final int protocolVersion;
+    private final int code;
+    private final int payloadSize;
+    private final List<ByteBuffer> frame;
+
+    public TespRequestEncoded(int protocolVersion, int code, int payloadSize, List<ByteBuffer> frame) {
+        this.protocolVersion = protocolVersion;
+        this.code = code;
+        this.payloadSize = payloadSize;
+        this.frame = frame;
+    }
+
+    /**
+     * The buffers of the frame, flipped for reading.
+     */
+    public List<ByteBuffer> getFrame() {
+        return frame;
+    }
+
+    @Override
+    public boolean hasPayload() {
+        return true;
+    }
+
+    @Override
+    public int payloadSize() {
+        return payloadSize;
+    }
+
+    @Override
+    public int getCode() {
+        return code;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+}
@@ -0,0 +1,36 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.paco.net.tesp.message.request;
+
+import com.pacoapp.paco.net.tesp.TespCodec;
+import com.pacoapp.paco.net.tesp.message.TespMessage;
+
+/**
+ * Sent first on a new connection, in a frame carrying the highest protocol version the client speaks.
+ * A server that speaks a newer version answers with a {@code TespResponseAnswer} whose payload is the
+ * version to use; an older server rejects the frame, and the client stays on the base version.
+ */
+public class TespRequestHandshake extends TespRequest {
+    @Override
+    public int getCode() {
+        return TespMessage.tespCodeRequestHandshake;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return TespCodec.protocolVersion;
+    }
+}
@@ -37,11 +37,15 @@ public class TespResponseError extends TespResponseWithStringPayload {
 
     private TespResponseError() {}
 
-    TespResponseError(String code) {
+    public TespResponseError(String code) {
         this(code, null, null);
     }
 
-    TespResponseError(String code, String message, String details) {
+    public TespResponseError(String code, String message) {
+        this(code, message, null);
+    }
+
+    public TespResponseError(String code, String message, String details) {
         errorCode = code;
         errorMessage = message;
         errorDetails = details;
@@ -64,6 +68,18 @@ public class TespResponseError extends TespResponseWithStringPayload {
         return response;
     }
 
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public String getErrorDetails() {
+        return errorDetails;
+    }
+
     @Override
     public int getCode() {
         return TespMessage.tespCodeResponseError;
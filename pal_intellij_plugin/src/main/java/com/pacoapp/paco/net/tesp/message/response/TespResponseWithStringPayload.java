@@ -29,6 +29,10 @@ public abstract class TespResponseWithStringPayload extends TespResponse impleme
 
     @Override
     public byte[] getEncodedPayload() {
+        // Encoded lazily, as a pooled encoder writes the String without needing the array
+        if (encodedPayload == null && payload != null) {
+            encodedPayload = payload.getBytes(StandardCharsets.UTF_8);
+        }
         return encodedPayload;
     }
 
@@ -43,8 +47,6 @@ public abstract class TespResponseWithStringPayload extends TespResponse impleme
         } else {
             throw new IllegalStateException("Payload cannot be set twice");
         }
-
-        this.encodedPayload = this.payload.getBytes();
     }
 
     @Override
@@ -64,6 +66,6 @@ public abstract class TespResponseWithStringPayload extends TespResponse impleme
 
     @Override
     public int payloadSize() {
-        return encodedPayload.length;
+        return getEncodedPayload().length;
     }
 }
@@ -15,21 +15,67 @@
 package com.pacoapp.paco.shared.model2;
 
 import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.SerializableString;
+import org.codehaus.jackson.io.SerializedString;
 import org.codehaus.jackson.map.JsonSerializer;
 import org.codehaus.jackson.map.SerializerProvider;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
 import java.io.IOException;
 
+/**
+ * Writes times as e.g. {@code "2021/03/04 13:14:15-0800"}. Formatting is cached per second and zone
+ * offset, the only inputs of the pattern, so the events of a batch, which mostly fall within a few
+ * seconds, share a few pre-rendered and pre-quoted strings.
+ */
 public class CustomDateTimeSerializer extends JsonSerializer<DateTime> {
 
-  DateTimeFormatter df = DateTimeFormat.forPattern("yyyy/MM/dd HH:mm:ssZ");
+  private static final DateTimeFormatter df = DateTimeFormat.forPattern("yyyy/MM/dd HH:mm:ssZ");
+  // Direct-mapped; a power of two
+  private static final int CACHE_SIZE = 64;
+
+  private static class Entry {
+    final long epochSecond;
+    final int offsetMillis;
+    final SerializedString formatted;
+
+    Entry(long epochSecond, int offsetMillis, SerializedString formatted) {
+      this.epochSecond = epochSecond;
+      this.offsetMillis = offsetMillis;
+      this.formatted = formatted;
+    }
+  }
+
+  // Entries are immutable, so threads racing on a slot at worst format the same time twice
+  private static final Entry[] cache = new Entry[CACHE_SIZE];
+
+  public static String format(DateTime value) {
+    return formatted(value.getMillis(), value.getZone()).getValue();
+  }
+
+  /**
+   * The formatted time, ready to be passed to {@link JsonGenerator#writeString(SerializableString)}.
+   */
+  public static SerializedString formatted(long millis, DateTimeZone zone) {
+    long epochSecond = Math.floorDiv(millis, 1000L);
+    int offsetMillis = zone.getOffset(millis);
+    int slot = (int) (epochSecond ^ (offsetMillis >>> 10)) & (CACHE_SIZE - 1);
+    Entry entry = cache[slot];
+    if (entry == null || entry.epochSecond != epochSecond || entry.offsetMillis != offsetMillis) {
+      // A fixed zone gives the same text as the real one for this instant
+      String text = df.withZone(DateTimeZone.forOffsetMillis(offsetMillis)).print(epochSecond * 1000L);
+      entry = new Entry(epochSecond, offsetMillis, new SerializedString(text));
+      cache[slot] = entry;
+    }
+    return entry.formatted;
+  }
 
   @Override
   public void serialize(DateTime value, JsonGenerator gen, SerializerProvider arg2)
           throws IOException {
-    gen.writeString(df.print(value));
+    gen.writeString(formatted(value.getMillis(), value.getZone()));
   }
 }
@@ -19,6 +19,7 @@ import org.codehaus.jackson.annotate.JsonProperty;
 import org.codehaus.jackson.map.annotate.JsonSerialize;
 import org.codehaus.jackson.map.annotate.JsonView;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 
 import java.io.Serializable;
 import java.util.Arrays;
@@ -47,6 +48,9 @@ public class PacoEvent implements Serializable, EventInterface {
 
   @JsonSerialize(using=CustomDateTimeSerializer.class)
   private DateTime responseTime;
+  // Long.MIN_VALUE if there is no response time. Events created in bulk only set this, and the
+  // DateTime is built the first time it is asked for.
+  private long responseTimeMillis = Long.MIN_VALUE;
   @JsonSerialize(using=CustomDateTimeSerializer.class)
   private DateTime scheduledTime;
   private String[] blobs;
@@ -94,7 +98,7 @@ public class PacoEvent implements Serializable, EventInterface {
     this.experimentId = experimentId;
     this.experimentName = experimentName;
     this.experimentVersion = experimentVersion;
-    this.responseTime = responseTime;
+    setResponseTime(responseTime);
     this.scheduledTime = scheduledTime;
     this.blobs = blobs;
     this.timezone = timezone;
@@ -198,11 +202,40 @@ public class PacoEvent implements Serializable, EventInterface {
    * @return
    */
   public DateTime getResponseTime() {
+    if (responseTime == null && responseTimeMillis != Long.MIN_VALUE) {
+      responseTime = new DateTime(responseTimeMillis);
+    }
     return responseTime;
   }
 
   public void setResponseTime(DateTime responseTime) {
     this.responseTime = responseTime;
+    this.responseTimeMillis = responseTime == null ? Long.MIN_VALUE : responseTime.getMillis();
+  }
+
+  /**
+   * The response time in the default time zone, without building a DateTime.
+   */
+  @JsonIgnore
+  public void setResponseTimeMillis(long responseTimeMillis) {
+    this.responseTime = null;
+    this.responseTimeMillis = responseTimeMillis;
+  }
+
+  /**
+   * The response time in epoch millis, or {@link Long#MIN_VALUE} if there is none.
+   */
+  @JsonIgnore
+  public long getResponseTimeMillis() {
+    return responseTimeMillis;
+  }
+
+  /**
+   * The time zone of the response time, which is the default one unless a DateTime was set.
+   */
+  @JsonIgnore
+  public DateTimeZone getResponseTimeZone() {
+    return responseTime != null ? responseTime.getZone() : DateTimeZone.getDefault();
   }
 
 
@@ -216,7 +249,7 @@ public class PacoEvent implements Serializable, EventInterface {
 
   @JsonIgnore
   public boolean isMissedSignal() {
-    return scheduledTime != null && responseTime == null;
+    return scheduledTime != null && responseTimeMillis == Long.MIN_VALUE;
   }
 
   /**
@@ -224,10 +257,10 @@ public class PacoEvent implements Serializable, EventInterface {
    */
   @JsonIgnore
   public long responseTime() {
-    if (responseTime == null || scheduledTime == null) {
+    if (responseTimeMillis == Long.MIN_VALUE || scheduledTime == null) {
       return 0;
     }
-    return responseTime.getMillis() - scheduledTime.getMillis();
+    return responseTimeMillis - scheduledTime.getMillis();
   }
 
   /**
@@ -347,7 +380,7 @@ public class PacoEvent implements Serializable, EventInterface {
   public String toString() {
     return "PacoEvent [id=" + id + ", experimentId=" + experimentId + ", who=" + who + ", lat=" + lat + ", lon=" + lon
             + ", when=" + when + ", appId=" + appId + ", pacoVersion=" + pacoVersion + ", shared=" + shared
-            + ", experimentName=" + experimentName + ", what=" + what + ", responseTime=" + responseTime
+            + ", experimentName=" + experimentName + ", what=" + what + ", responseTime=" + getResponseTime()
             + ", scheduledTime=" + scheduledTime + ", blobs=" + Arrays.toString(blobs) + ", experimentVersion="
             + experimentVersion + ", timezone=" + timezone + ", experimentGroupName=" + experimentGroupName
             + ", actionTriggerId=" + actionTriggerId + ", actionTriggerSpecId=" + actionTriggerSpecId + ", actionId="
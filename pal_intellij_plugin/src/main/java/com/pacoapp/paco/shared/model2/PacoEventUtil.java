@@ -16,27 +16,39 @@ package com.pacoapp.paco.shared.model2;
 
 import com.pacoapp.intellij.PacoApplicationComponent;
 import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.joda.time.DateTime;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 
 public class PacoEventUtil {
 
   public static final String SENSOR_GROUP_NAME = "**IntelliJLoggerProcess";
+  // JsonConverter builds a new mapper on every call, and a new mapper introspects every class again.
+  // Mappers are thread-safe once configured.
+  private static final ObjectMapper OBJECT_MAPPER = JsonConverter.getObjectMapper();
     
   public static PacoEvent createEvent() {
     PacoEvent event = new PacoEvent();
     event.setExperimentGroupName(SENSOR_GROUP_NAME);
-    event.setResponseTime(new DateTime());
+    event.setResponseTimeMillis(System.currentTimeMillis());
     return event;
   }
 
   //TODO move to JsonConverter
   public static String jsonify(Object event) {
-      ObjectMapper mapper = JsonConverter.getObjectMapper();
+      ObjectMapper mapper = OBJECT_MAPPER;
       try {
+        if (event instanceof PacoEvent) {
+          StringWriter out = new StringWriter();
+          JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out);
+          PacoEventWriter.write((PacoEvent) event, generator);
+          generator.close();
+          return out.toString();
+        }
         return mapper.writeValueAsString(event);
       } catch (JsonGenerationException e) {
         PacoApplicationComponent.log.severe("Json generation error: " + e);
@@ -47,5 +59,35 @@ public class PacoEventUtil {
       }
       return null;
     }
+
+  /**
+   * Writes the same JSON as {@link #jsonify} to {@code out}, without building a String. For the same
+   * bytes as the String, the writer must do the encoding: Jackson's own UTF-8 output escapes
+   * characters outside the BMP. Returns false if the event couldn't be serialized, in which case part
+   * of it may have been written.
+   */
+  public static boolean writeJson(Object event, Writer out) {
+    ObjectMapper mapper = OBJECT_MAPPER;
+    try {
+      JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out);
+      // The stream belongs to the caller
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      if (event instanceof PacoEvent) {
+        PacoEventWriter.write((PacoEvent) event, generator);
+      } else {
+        mapper.writeValue(generator, event);
+      }
+      // Flushes and returns the generator's buffers, leaving the stream open
+      generator.close();
+      return true;
+    } catch (JsonGenerationException e) {
+      PacoApplicationComponent.log.severe("Json generation error: " + e);
+    } catch (JsonMappingException e) {
+      PacoApplicationComponent.log.severe("JsonMapping error: " + e.getMessage());
+    } catch (IOException e) {
+      PacoApplicationComponent.log.severe("IO error: " + e.getMessage());
+    }
+    return false;
+  }
 }
 
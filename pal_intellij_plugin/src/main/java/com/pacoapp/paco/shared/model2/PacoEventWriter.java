@@ -0,0 +1,114 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.shared.model2;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes a {@link PacoEvent} the way {@link JsonConverter#getObjectMapper()} does, without bean
+ * introspection: properties in the mapper's order, null properties left out (apart from the two times,
+ * whose serializer annotation includes them always), {@code what} as {@code responses} and an output's
+ * value as {@code answer}. Ignored properties, like {@code lat}, {@code lon} and {@code shared}, are never
+ * written.
+ *
+ * Must be kept in step with the Jackson annotations on PacoEvent and Output.
+ */
+public class PacoEventWriter {
+  private PacoEventWriter() {
+  }
+
+  public static void write(PacoEvent event, JsonGenerator gen) throws IOException {
+    gen.writeStartObject();
+    writeNumberField(gen, "id", event.getId());
+    writeNumberField(gen, "experimentId", event.getExperimentId());
+    writeStringField(gen, "who", event.getWho());
+    writeMillisField(gen, "when", event.getWhen());
+    writeStringField(gen, "appId", event.getAppId());
+    writeStringField(gen, "pacoVersion", event.getPacoVersion());
+    writeStringField(gen, "experimentName", event.getExperimentName());
+    gen.writeFieldName("responseTime");
+    if (event.getResponseTimeMillis() == Long.MIN_VALUE) {
+      gen.writeNull();
+    } else {
+      gen.writeString(CustomDateTimeSerializer.formatted(event.getResponseTimeMillis(), event.getResponseTimeZone()));
+    }
+    writeTimeField(gen, "scheduledTime", event.getScheduledTime());
+    String[] blobs = event.getBlobs();
+    if (blobs != null) {
+      gen.writeArrayFieldStart("blobs");
+      for (String blob : blobs) {
+        gen.writeString(blob);
+      }
+      gen.writeEndArray();
+    }
+    if (event.getExperimentVersion() != null) {
+      gen.writeNumberField("experimentVersion", event.getExperimentVersion());
+    }
+    writeStringField(gen, "timezone", event.getTimezone());
+    writeStringField(gen, "experimentGroupName", event.getExperimentGroupName());
+    writeNumberField(gen, "actionTriggerId", event.getActionTriggerId());
+    writeNumberField(gen, "actionTriggerSpecId", event.getActionTriggerSpecId());
+    writeNumberField(gen, "actionId", event.getActionId());
+    writeMillisField(gen, "sortDate", event.getSortDate());
+    List<Output> outputs = event.getWhat();
+    if (outputs != null) {
+      gen.writeArrayFieldStart("responses");
+      for (Output output : outputs) {
+        if (output == null) {
+          gen.writeNull();
+          continue;
+        }
+        gen.writeStartObject();
+        writeStringField(gen, "name", output.getName());
+        writeStringField(gen, "answer", output.getValue());
+        gen.writeEndObject();
+      }
+      gen.writeEndArray();
+    }
+    gen.writeEndObject();
+  }
+
+  private static void writeStringField(JsonGenerator gen, String name, String value) throws IOException {
+    if (value != null) {
+      gen.writeStringField(name, value);
+    }
+  }
+
+  private static void writeNumberField(JsonGenerator gen, String name, Long value) throws IOException {
+    if (value != null) {
+      gen.writeNumberField(name, value);
+    }
+  }
+
+  // Joda times without a custom serializer are written as epoch millis
+  private static void writeMillisField(JsonGenerator gen, String name, DateTime value) throws IOException {
+    if (value != null) {
+      gen.writeNumberField(name, value.getMillis());
+    }
+  }
+
+  private static void writeTimeField(JsonGenerator gen, String name, DateTime value) throws IOException {
+    gen.writeFieldName(name);
+    if (value == null) {
+      gen.writeNull();
+    } else {
+      gen.writeString(CustomDateTimeSerializer.formatted(value.getMillis(), value.getZone()));
+    }
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveFlusherTest {
+  private static final long LONG_MS = 60000;
+  private static final long EVENT_BYTES = 100;
+
+  // Events are published with publish() and moved into the batch by collect(), like the ring buffer
+  private static class FakeSource implements AdaptiveFlusher.Source {
+    private int uncollected;
+    private long uncollectedSince = Long.MAX_VALUE;
+    private int pending;
+    private long oldestPending = Long.MAX_VALUE;
+    // Results of the next flushes; flushes succeed once it is empty
+    private final ArrayDeque<Boolean> results = new ArrayDeque<Boolean>();
+    private final List<Integer> flushedBatches = new ArrayList<Integer>();
+    private final List<Long> flushTimes = new ArrayList<Long>();
+
+    synchronized void publish(int events) {
+      if (uncollected == 0) {
+        uncollectedSince = System.currentTimeMillis();
+      }
+      uncollected += events;
+    }
+
+    synchronized void failNextFlushes(int count) {
+      for (int i = 0; i < count; i++) {
+        results.add(false);
+      }
+    }
+
+    @Override
+    public synchronized void collect() {
+      if (uncollected > 0) {
+        pending += uncollected;
+        oldestPending = Math.min(oldestPending, uncollectedSince);
+        uncollected = 0;
+        uncollectedSince = Long.MAX_VALUE;
+      }
+    }
+
+    @Override
+    public synchronized boolean hasUncollected() {
+      return uncollected > 0;
+    }
+
+    @Override
+    public synchronized int pendingEvents() {
+      return pending;
+    }
+
+    @Override
+    public synchronized long pendingBytes() {
+      return pending * EVENT_BYTES;
+    }
+
+    @Override
+    public synchronized long oldestPendingMillis() {
+      return oldestPending;
+    }
+
+    @Override
+    public synchronized boolean flush() {
+      flushTimes.add(System.currentTimeMillis());
+      final Boolean result = results.poll();
+      if (result != null && !result) {
+        return false;
+      }
+      flushedBatches.add(pending);
+      pending = 0;
+      oldestPending = Long.MAX_VALUE;
+      notifyAll();
+      return true;
+    }
+
+    synchronized List<Integer> flushedBatches() {
+      return new ArrayList<Integer>(flushedBatches);
+    }
+
+    synchronized List<Long> flushTimes() {
+      return new ArrayList<Long>(flushTimes);
+    }
+
+    synchronized void awaitFlushes(int batches, long timeoutMs) throws InterruptedException {
+      final long deadline = System.currentTimeMillis() + timeoutMs;
+      long remaining;
+      while (flushedBatches.size() < batches && (remaining = deadline - System.currentTimeMillis()) > 0) {
+        wait(remaining);
+      }
+    }
+  }
+
+  private final FakeSource source = new FakeSource();
+  private AdaptiveFlusher flusher;
+
+  private AdaptiveFlusher start(int maxBatchEvents, long maxBatchBytes, long maxLatencyMs, long collectIntervalMs,
+                                long retryIntervalMs) {
+    flusher = new AdaptiveFlusher(source, maxBatchEvents, maxBatchBytes, maxLatencyMs, collectIntervalMs,
+        retryIntervalMs);
+    flusher.start();
+    return flusher;
+  }
+
+  private void publish(int events) {
+    source.publish(events);
+    flusher.onEventPublished();
+  }
+
+  @After
+  public void stop() throws InterruptedException {
+    if (flusher != null) {
+      flusher.close();
+      assertTrue(flusher.awaitTermination(5000));
+    }
+  }
+
+  @Test
+  public void flushesOnceTheBatchIsFull() throws InterruptedException {
+    start(3, Long.MAX_VALUE, LONG_MS, 10, LONG_MS);
+    publish(2);
+    Thread.sleep(100);
+    assertTrue(source.flushedBatches().isEmpty());
+
+    publish(1);
+    source.awaitFlushes(1, 5000);
+    assertEquals(3, (int) source.flushedBatches().get(0));
+  }
+
+  @Test
+  public void flushesOnceTheBatchIsLargeEnough() throws InterruptedException {
+    start(Integer.MAX_VALUE, 4 * EVENT_BYTES, LONG_MS, 10, LONG_MS);
+    publish(3);
+    Thread.sleep(100);
+    assertTrue(source.flushedBatches().isEmpty());
+
+    publish(1);
+    source.awaitFlushes(1, 5000);
+    assertEquals(4, (int) source.flushedBatches().get(0));
+  }
+
+  @Test
+  public void flushesOnceTheOldestEventIsDue() throws InterruptedException {
+    start(Integer.MAX_VALUE, Long.MAX_VALUE, 200, 10, LONG_MS);
+    final long publishedMillis = System.currentTimeMillis();
+    publish(1);
+    source.awaitFlushes(1, 5000);
+    assertEquals(1, source.flushedBatches().size());
+    assertTrue(source.flushTimes().get(0) - publishedMillis >= 200);
+  }
+
+  @Test
+  public void wakesUpWhenAnEventIsPublished() throws InterruptedException {
+    // Without the wake-up, the flusher would only collect once a minute
+    start(1, Long.MAX_VALUE, LONG_MS, LONG_MS, LONG_MS);
+    Thread.sleep(100);
+    publish(1);
+    source.awaitFlushes(1, 5000);
+    assertEquals(1, source.flushedBatches().size());
+  }
+
+  @Test
+  public void retriesAFailedFlushAfterTheRetryInterval() throws InterruptedException {
+    source.failNextFlushes(2);
+    start(1, Long.MAX_VALUE, LONG_MS, 10, 200);
+    publish(1);
+    source.awaitFlushes(1, 5000);
+
+    assertEquals(1, (int) source.flushedBatches().get(0));
+    final List<Long> times = source.flushTimes();
+    assertEquals(3, times.size());
+    // The retry is timed from just before the failed flush
+    assertTrue(times.get(1) - times.get(0) >= 150);
+    assertTrue(times.get(2) - times.get(1) >= 150);
+  }
+
+  @Test
+  public void stopsWhenClosed() throws InterruptedException {
+    start(1, Long.MAX_VALUE, LONG_MS, 10, LONG_MS);
+    flusher.close();
+    assertTrue(flusher.awaitTermination(5000));
+    flusher = null;
+
+    source.publish(1);
+    Thread.sleep(100);
+    assertTrue(source.flushedBatches().isEmpty());
+  }
+}
@@ -0,0 +1,212 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import com.pacoapp.paco.shared.model2.Output;
+import com.pacoapp.paco.shared.model2.PacoEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedEventQueueTest {
+  private static final PacoIntellijEventTypes.EventType BULK = PacoIntellijEventTypes.EventType.DIFF;
+  private static final PacoIntellijEventTypes.EventType USER_ACTION = PacoIntellijEventTypes.EventType.IDE_ACTION;
+  private static final PacoIntellijEventTypes.EventType LIFECYCLE = PacoIntellijEventTypes.EventType.IDE_STARTED;
+  // The estimated size of an event from event(n) with a one-digit n
+  private static final int EVENT_BYTES = 160 + 24 + 1 + 1;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static PacoEvent event(int n) {
+    PacoEvent event = new PacoEvent();
+    List<Output> outputs = new ArrayList<Output>();
+    outputs.add(new Output("n", String.valueOf(n)));
+    event.setWhat(outputs);
+    return event;
+  }
+
+  private static List<Integer> numbers(List<PacoEvent> events) {
+    List<Integer> numbers = new ArrayList<Integer>();
+    for (PacoEvent event : events) {
+      numbers.add(Integer.parseInt(event.getWhat().get(0).getValue()));
+    }
+    return numbers;
+  }
+
+  @Test
+  public void takesAllEventsInTheOrderTheyWereAdded() {
+    BoundedEventQueue queue = new BoundedEventQueue(100, Long.MAX_VALUE, BoundedEventQueue.OverflowPolicy.DROP_OLDEST,
+        null);
+    queue.add(event(1), USER_ACTION);
+    queue.add(event(2), BULK);
+    queue.add(event(3), LIFECYCLE);
+    queue.add(event(4), USER_ACTION);
+    assertEquals(4, queue.size());
+    assertEquals(4 * EVENT_BYTES, queue.bytes());
+
+    assertEquals(Arrays.asList(1, 2, 3, 4), numbers(queue.takeAll()));
+    assertTrue(queue.isEmpty());
+    assertEquals(0, queue.bytes());
+  }
+
+  @Test
+  public void dropsTheOldestEventWhenFull() {
+    BoundedEventQueue queue = new BoundedEventQueue(3, Long.MAX_VALUE, BoundedEventQueue.OverflowPolicy.DROP_OLDEST,
+        null);
+    queue.add(event(1), LIFECYCLE);
+    queue.add(event(2), USER_ACTION);
+    queue.add(event(3), USER_ACTION);
+    queue.add(event(4), BULK);
+    queue.add(event(5), BULK);
+
+    assertEquals(Arrays.asList(3, 4, 5), numbers(queue.takeAll()));
+    Map<PacoIntellijEventTypes.EventType, Long> dropped = queue.takeDropCounts();
+    assertEquals(2, dropped.size());
+    assertEquals(Long.valueOf(1), dropped.get(LIFECYCLE));
+    assertEquals(Long.valueOf(1), dropped.get(USER_ACTION));
+    // The counts are reset once taken
+    assertTrue(queue.takeDropCounts().isEmpty());
+  }
+
+  @Test
+  public void boundsTheEstimatedBytes() {
+    BoundedEventQueue queue = new BoundedEventQueue(100, 2 * EVENT_BYTES, BoundedEventQueue.OverflowPolicy.DROP_OLDEST,
+        null);
+    for (int i = 0; i < 5; i++) {
+      queue.add(event(i), USER_ACTION);
+      assertTrue(queue.bytes() <= 2 * EVENT_BYTES);
+    }
+    assertEquals(Arrays.asList(3, 4), numbers(queue.takeAll()));
+    assertEquals(Long.valueOf(3), queue.takeDropCounts().get(USER_ACTION));
+  }
+
+  @Test
+  public void dropsTheLowestPriorityFirst() {
+    BoundedEventQueue queue = new BoundedEventQueue(3, Long.MAX_VALUE,
+        BoundedEventQueue.OverflowPolicy.DROP_BY_PRIORITY, null);
+    queue.add(event(1), LIFECYCLE);
+    queue.add(event(2), USER_ACTION);
+    queue.add(event(3), BULK);
+    // Evicts the bulk event, though it is the newest
+    queue.add(event(4), USER_ACTION);
+    // Evicts the oldest user action
+    queue.add(event(5), LIFECYCLE);
+    // Nothing of a lower priority is left, so the new event is dropped itself
+    queue.add(event(6), BULK);
+    queue.add(event(7), USER_ACTION);
+
+    assertEquals(Arrays.asList(1, 5, 7), numbers(queue.takeAll()));
+    Map<PacoIntellijEventTypes.EventType, Long> dropped = queue.takeDropCounts();
+    assertEquals(Long.valueOf(2), dropped.get(BULK));
+    assertEquals(Long.valueOf(2), dropped.get(USER_ACTION));
+    assertEquals(null, dropped.get(LIFECYCLE));
+  }
+
+  @Test
+  public void spillsOverflowToTheSpool() {
+    EventSpool spool = new EventSpool(folder.getRoot(), 4096, 1024 * 1024, 1e6);
+    BoundedEventQueue queue = new BoundedEventQueue(2, Long.MAX_VALUE, BoundedEventQueue.OverflowPolicy.SPILL_TO_DISK,
+        spool);
+    queue.add(event(1), USER_ACTION);
+    queue.add(event(2), USER_ACTION);
+    queue.add(event(3), USER_ACTION);
+
+    assertEquals(Arrays.asList(2, 3), numbers(queue.takeAll()));
+    assertTrue(queue.takeDropCounts().isEmpty());
+    List<EventSpool.Record> spilled = spool.takeReplay(10, Long.MAX_VALUE);
+    assertEquals(1, spilled.size());
+    assertTrue(new String(spilled.get(0).json, StandardCharsets.UTF_8).contains("\"1\""));
+  }
+
+  @Test
+  public void dropsWhatDoesNotFitInTheSpool() {
+    // Too small for even one segment
+    EventSpool spool = new EventSpool(folder.getRoot(), 4096, 1024, 1e6);
+    BoundedEventQueue queue = new BoundedEventQueue(1, Long.MAX_VALUE, BoundedEventQueue.OverflowPolicy.SPILL_TO_DISK,
+        spool);
+    queue.add(event(1), USER_ACTION);
+    queue.add(event(2), USER_ACTION);
+
+    assertEquals(Collections.singletonList(2), numbers(queue.takeAll()));
+    assertEquals(Long.valueOf(1), queue.takeDropCounts().get(USER_ACTION));
+  }
+
+  @Test
+  public void boundsEachLaneWithinItself() {
+    BoundedEventQueue queue = new BoundedEventQueue(100, Long.MAX_VALUE, BoundedEventQueue.OverflowPolicy.DROP_OLDEST,
+        null).configureLane(PacoIntellijEventTypes.Priority.BULK, 2, Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+    queue.add(event(1), LIFECYCLE);
+    queue.add(event(2), BULK);
+    queue.add(event(3), BULK);
+    queue.add(event(4), BULK);
+
+    // The lifecycle event is older, but not in the full lane
+    assertEquals(Arrays.asList(1, 3, 4), numbers(queue.takeAll()));
+    assertEquals(Long.valueOf(1), queue.takeDropCounts().get(BULK));
+  }
+
+  @Test
+  public void takesWithinTheFlushBudget() {
+    BoundedEventQueue queue = new BoundedEventQueue(100, Long.MAX_VALUE, BoundedEventQueue.OverflowPolicy.DROP_OLDEST,
+        null).configureLane(PacoIntellijEventTypes.Priority.BULK, 100, Long.MAX_VALUE, 2, Long.MAX_VALUE);
+    for (int i = 0; i < 5; i++) {
+      queue.add(event(i), BULK);
+    }
+    queue.add(event(5), USER_ACTION);
+
+    queue.startFlush();
+    assertEquals(Arrays.asList(0), numbers(queue.take(PacoIntellijEventTypes.Priority.BULK, 1, Long.MAX_VALUE)));
+    assertEquals(Arrays.asList(1), numbers(queue.take(PacoIntellijEventTypes.Priority.BULK, 10, Long.MAX_VALUE)));
+    assertTrue(queue.take(PacoIntellijEventTypes.Priority.BULK, 10, Long.MAX_VALUE).isEmpty());
+    // Unconfigured lanes have no budget
+    assertEquals(Arrays.asList(5), numbers(queue.take(PacoIntellijEventTypes.Priority.USER_ACTION, 10,
+        Long.MAX_VALUE)));
+
+    queue.startFlush();
+    // At least one event per frame, even if it is larger than the frame's byte limit
+    assertEquals(Arrays.asList(2), numbers(queue.take(PacoIntellijEventTypes.Priority.BULK, 10, 1)));
+    assertEquals(Arrays.asList(3), numbers(queue.take(PacoIntellijEventTypes.Priority.BULK, 10, Long.MAX_VALUE)));
+    assertEquals(1, queue.size());
+  }
+
+  @Test
+  public void countsRecordedDrops() {
+    PipelineMetrics metrics = new PipelineMetrics();
+    BoundedEventQueue queue = new BoundedEventQueue(100, Long.MAX_VALUE, BoundedEventQueue.OverflowPolicy.DROP_OLDEST,
+        null).withMetrics(metrics);
+    queue.recordDrop(USER_ACTION);
+    queue.recordDrops(USER_ACTION, 2);
+    queue.recordDrops(BULK, 4);
+
+    Map<PacoIntellijEventTypes.EventType, Long> dropped = queue.takeDropCounts();
+    assertEquals(Long.valueOf(3), dropped.get(USER_ACTION));
+    assertEquals(Long.valueOf(4), dropped.get(BULK));
+    // The metrics keep counting after the queue's counts are taken
+    assertTrue(queue.takeDropCounts().isEmpty());
+    assertEquals(Long.valueOf(3), metrics.snapshot().drops.get(USER_ACTION));
+  }
+}
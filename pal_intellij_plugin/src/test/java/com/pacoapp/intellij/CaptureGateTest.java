@@ -0,0 +1,114 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureGateTest {
+  private static final long LONG_MS = 60000;
+
+  private static int flushesOutOf(CaptureGate gate, int attempts) {
+    int flushes = 0;
+    for (int i = 0; i < attempts; i++) {
+      if (gate.shouldFlush()) {
+        flushes++;
+      }
+    }
+    return flushes;
+  }
+
+  @Test
+  public void startsOpen() {
+    CaptureGate gate = new CaptureGate();
+    assertTrue(gate.isOpen());
+    assertEquals(10, flushesOutOf(gate, 10));
+  }
+
+  @Test
+  public void closesWhileTheServerIsPaused() throws InterruptedException {
+    CaptureGate gate = new CaptureGate(100, LONG_MS, LONG_MS);
+    gate.onPaused();
+    assertFalse(gate.isOpen());
+    // Being paused doesn't slow down flushing, so the probe goes out as soon as the gate opens
+    assertEquals(10, flushesOutOf(gate, 10));
+
+    Thread.sleep(200);
+    assertTrue(gate.isOpen());
+  }
+
+  @Test
+  public void reopensOnceABatchIsAccepted() {
+    CaptureGate gate = new CaptureGate(LONG_MS, LONG_MS, LONG_MS);
+    gate.onPaused();
+    assertFalse(gate.isOpen());
+    gate.onAccepted();
+    assertTrue(gate.isOpen());
+
+    gate.onOverloaded();
+    assertFalse(gate.isOpen());
+    gate.onAccepted();
+    assertTrue(gate.isOpen());
+  }
+
+  @Test
+  public void backsOffLongerWhileOverloaded() throws InterruptedException {
+    CaptureGate gate = new CaptureGate(LONG_MS, 200, 800);
+    gate.onOverloaded();
+    assertFalse(gate.isOpen());
+    Thread.sleep(300);
+    assertTrue(gate.isOpen());
+
+    // The backoff doubled to 400ms
+    gate.onOverloaded();
+    Thread.sleep(200);
+    assertFalse(gate.isOpen());
+    Thread.sleep(300);
+    assertTrue(gate.isOpen());
+
+    // An accepted batch resets it
+    gate.onAccepted();
+    gate.onOverloaded();
+    Thread.sleep(300);
+    assertTrue(gate.isOpen());
+  }
+
+  @Test
+  public void slowsDownFlushingWhileOverloaded() {
+    CaptureGate gate = new CaptureGate(LONG_MS, LONG_MS, LONG_MS);
+    gate.onOverloaded();
+    assertEquals(5, flushesOutOf(gate, 10));
+    gate.onOverloaded();
+    assertEquals(5, flushesOutOf(gate, 20));
+
+    // Capped at one flush in 32 attempts
+    for (int i = 0; i < 10; i++) {
+      gate.onOverloaded();
+    }
+    assertEquals(2, flushesOutOf(gate, 64));
+
+    // Every accepted batch halves the slowdown again
+    gate.onAccepted();
+    assertEquals(4, flushesOutOf(gate, 64));
+    for (int i = 0; i < 10; i++) {
+      gate.onAccepted();
+    }
+    assertEquals(10, flushesOutOf(gate, 10));
+  }
+}
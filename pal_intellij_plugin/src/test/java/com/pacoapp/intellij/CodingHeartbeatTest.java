@@ -0,0 +1,174 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.LightVirtualFile;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CodingHeartbeatTest {
+  private static final long LONG_GAP_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  private final List<Map<String, String>> sessions = new ArrayList<Map<String, String>>();
+  private final VirtualFile a = new LightVirtualFile("A.java");
+  private final VirtualFile b = new LightVirtualFile("B.java");
+
+  private CodingHeartbeat heartbeat(long idleGapNanos) {
+    return new CodingHeartbeat(sessions::add, idleGapNanos);
+  }
+
+  private static Project project(final String name) {
+    return (Project) Proxy.newProxyInstance(Project.class.getClassLoader(), new Class<?>[] {Project.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getName":
+              return name;
+            case "getBasePath":
+              return "/home/me/" + name;
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            default:
+              return null;
+          }
+        });
+  }
+
+  @Test
+  public void reportsOneSessionPerWindow() {
+    CodingHeartbeat heartbeat = heartbeat(LONG_GAP_NANOS);
+    Project project = project("paco");
+    for (int i = 0; i < 100; i++) {
+      heartbeat.onActivity(project, a);
+    }
+    assertTrue(heartbeat.isActive());
+    heartbeat.closeIfIdle();
+    assertTrue(sessions.isEmpty());
+
+    heartbeat.close();
+    assertFalse(heartbeat.isActive());
+    assertEquals(1, sessions.size());
+    Map<String, String> session = sessions.get(0);
+    assertEquals("paco", session.get("project"));
+    assertEquals("/home/me/paco", session.get("project_dir"));
+    assertEquals("100", session.get("actions"));
+    assertEquals("1", session.get("files"));
+    assertEquals(a.getCanonicalPath(), session.get("file"));
+
+    // Nothing more to report
+    heartbeat.close();
+    assertEquals(1, sessions.size());
+  }
+
+  @Test
+  public void endsTheWindowAfterTheIdleGap() throws InterruptedException {
+    CodingHeartbeat heartbeat = heartbeat(TimeUnit.MILLISECONDS.toNanos(50));
+    heartbeat.onActivity(null, a);
+    heartbeat.onActivity(null, a);
+    Thread.sleep(100);
+    heartbeat.closeIfIdle();
+    assertFalse(heartbeat.isActive());
+    assertEquals(1, sessions.size());
+    assertEquals("2", sessions.get(0).get("actions"));
+  }
+
+  @Test
+  public void startsANewWindowWithActivityAfterTheIdleGap() throws InterruptedException {
+    CodingHeartbeat heartbeat = heartbeat(TimeUnit.MILLISECONDS.toNanos(50));
+    heartbeat.onActivity(null, a);
+    Thread.sleep(100);
+    heartbeat.onActivity(null, b);
+    assertEquals(1, sessions.size());
+    assertEquals(a.getCanonicalPath(), sessions.get(0).get("file"));
+    // The idle time isn't counted as active
+    assertEquals("0", sessions.get(0).get("active_ms"));
+
+    heartbeat.close();
+    assertEquals(2, sessions.size());
+    assertEquals(b.getCanonicalPath(), sessions.get(1).get("file"));
+    assertEquals("1", sessions.get(1).get("files"));
+  }
+
+  @Test
+  public void endsTheWindowWhenActivityMovesToAnotherProject() {
+    CodingHeartbeat heartbeat = heartbeat(LONG_GAP_NANOS);
+    heartbeat.onActivity(project("paco"), a);
+    heartbeat.onActivity(project("other"), a);
+    assertEquals(1, sessions.size());
+    assertEquals("paco", sessions.get(0).get("project"));
+
+    heartbeat.close();
+    assertEquals("other", sessions.get(1).get("project"));
+  }
+
+  @Test
+  public void countsTheTimeUntilTheNextActionInTheEarlierFile() throws InterruptedException {
+    CodingHeartbeat heartbeat = heartbeat(LONG_GAP_NANOS);
+    heartbeat.onActivity(null, a);
+    Thread.sleep(100);
+    heartbeat.onActivity(null, b);
+    heartbeat.onActivity(null, b);
+    heartbeat.onActivity(null, a);
+    heartbeat.close();
+
+    Map<String, String> session = sessions.get(0);
+    assertEquals(a.getCanonicalPath(), session.get("file"));
+    assertEquals("2", session.get("files"));
+    assertEquals("4", session.get("actions"));
+    long activeMs = Long.parseLong(session.get("active_ms"));
+    assertTrue(activeMs >= 100);
+    assertTrue(activeMs <= Long.parseLong(session.get("duration_ms")));
+
+    // One "<active ms> <actions> <path>" line per file, in the order they were first touched
+    String[] lines = session.get("file_activity").split("\n");
+    assertEquals(2, lines.length);
+    assertTrue(lines[0].endsWith(" 2 " + a.getCanonicalPath()));
+    assertTrue(Long.parseLong(lines[0].split(" ")[0]) >= 100);
+    assertTrue(lines[1].endsWith(" 2 " + b.getCanonicalPath()));
+  }
+
+  @Test
+  public void reportsActivityWithoutAFile() {
+    CodingHeartbeat heartbeat = heartbeat(LONG_GAP_NANOS);
+    heartbeat.onActivity(null, null);
+    heartbeat.close();
+    assertEquals("no file", sessions.get(0).get("file"));
+    assertFalse(sessions.get(0).containsKey("project"));
+  }
+
+  @Test
+  public void tracksMoreFilesThanItsInitialSlots() {
+    CodingHeartbeat heartbeat = heartbeat(LONG_GAP_NANOS);
+    for (int i = 0; i < 20; i++) {
+      heartbeat.onActivity(null, new LightVirtualFile("F" + i + ".java"));
+    }
+    heartbeat.close();
+    assertEquals("20", sessions.get(0).get("files"));
+    assertEquals(20, sessions.get(0).get("file_activity").split("\n").length);
+  }
+}
@@ -0,0 +1,168 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventCoalescerTest {
+  private static final PacoIntellijEventTypes.EventType FOCUSED = PacoIntellijEventTypes.EventType.DOCUMENT_FOCUSED;
+  private static final PacoIntellijEventTypes.EventType ACTION = PacoIntellijEventTypes.EventType.IDE_ACTION;
+  private static final PacoIntellijEventTypes.EventType SAVED = PacoIntellijEventTypes.EventType.DOCUMENT_SAVED;
+  private static final long WINDOW_MS = 1000;
+
+  private static class Run {
+    final PacoIntellijEventTypes.EventType type;
+    final Map<String, String> data;
+    final long firstTimeMillis;
+    final long lastTimeMillis;
+    final int repeatCount;
+
+    Run(PacoIntellijEventTypes.EventType type, Map<String, String> data, long firstTimeMillis, long lastTimeMillis,
+        int repeatCount) {
+      this.type = type;
+      this.data = data;
+      this.firstTimeMillis = firstTimeMillis;
+      this.lastTimeMillis = lastTimeMillis;
+      this.repeatCount = repeatCount;
+    }
+  }
+
+  private final List<Run> runs = new ArrayList<Run>();
+  private final EventCoalescer coalescer = new EventCoalescer(
+      (type, data, first, last, count) -> runs.add(new Run(type, data, first, last, count)), WINDOW_MS)
+      .coalesce(FOCUSED)
+      .coalesce(ACTION, "action");
+
+  private static Map<String, String> data(String... keysAndValues) {
+    Map<String, String> data = new HashMap<String, String>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      data.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return data;
+  }
+
+  private void assertRun(int index, PacoIntellijEventTypes.EventType type, long first, long last, int count) {
+    Run run = runs.get(index);
+    assertEquals(type, run.type);
+    assertEquals(first, run.firstTimeMillis);
+    assertEquals(last, run.lastTimeMillis);
+    assertEquals(count, run.repeatCount);
+  }
+
+  @Test
+  public void passesOnTypesThatAreNotCoalesced() {
+    coalescer.add(SAVED, data("file", "a"), 1);
+    coalescer.add(SAVED, data("file", "a"), 2);
+    assertFalse(coalescer.isHolding());
+    assertEquals(2, runs.size());
+    assertRun(0, SAVED, 1, 1, 1);
+    assertRun(1, SAVED, 2, 2, 1);
+  }
+
+  @Test
+  public void mergesARunOfIdenticalEvents() {
+    coalescer.add(FOCUSED, data("file", "a"), 10);
+    coalescer.add(FOCUSED, data("file", "a"), 20);
+    coalescer.add(FOCUSED, data("file", "a"), 30);
+    assertTrue(coalescer.isHolding());
+    assertTrue(runs.isEmpty());
+
+    coalescer.flush();
+    assertFalse(coalescer.isHolding());
+    assertEquals(1, runs.size());
+    assertRun(0, FOCUSED, 10, 30, 3);
+  }
+
+  @Test
+  public void endsARunWithTheFirstEventThatDiffers() {
+    coalescer.add(FOCUSED, data("file", "a"), 10);
+    coalescer.add(FOCUSED, data("file", "a"), 20);
+    coalescer.add(FOCUSED, data("file", "b"), 30);
+    coalescer.add(SAVED, data("file", "b"), 40);
+    coalescer.add(FOCUSED, data("file", "b"), 50);
+    coalescer.flush();
+
+    assertEquals(4, runs.size());
+    assertRun(0, FOCUSED, 10, 20, 2);
+    assertEquals("a", runs.get(0).data.get("file"));
+    assertRun(1, FOCUSED, 30, 30, 1);
+    assertRun(2, SAVED, 40, 40, 1);
+    assertRun(3, FOCUSED, 50, 50, 1);
+  }
+
+  @Test
+  public void onlyComparesTheKeyFields() {
+    coalescer.add(ACTION, data("action", "EditorBackSpace", "file", "a"), 10);
+    coalescer.add(ACTION, data("action", "EditorBackSpace", "file", "b"), 20);
+    coalescer.add(ACTION, data("action", "EditorEnter", "file", "b"), 30);
+    coalescer.flush();
+
+    assertEquals(2, runs.size());
+    assertRun(0, ACTION, 10, 20, 2);
+    // The merged event keeps the data of the first event
+    assertEquals("a", runs.get(0).data.get("file"));
+    assertRun(1, ACTION, 30, 30, 1);
+  }
+
+  @Test
+  public void endsARunOnceItsWindowHasPassed() {
+    coalescer.add(FOCUSED, data("file", "a"), 0);
+    coalescer.add(FOCUSED, data("file", "a"), WINDOW_MS);
+    coalescer.add(FOCUSED, data("file", "a"), WINDOW_MS + 1);
+    coalescer.flush();
+
+    assertEquals(2, runs.size());
+    assertRun(0, FOCUSED, 0, WINDOW_MS, 2);
+    assertRun(1, FOCUSED, WINDOW_MS + 1, WINDOW_MS + 1, 1);
+  }
+
+  @Test
+  public void flushesExpiredRuns() {
+    coalescer.add(FOCUSED, data("file", "a"), 100);
+    coalescer.flushExpired(100 + WINDOW_MS);
+    assertTrue(coalescer.isHolding());
+
+    coalescer.flushExpired(100 + WINDOW_MS + 1);
+    assertFalse(coalescer.isHolding());
+    assertEquals(1, runs.size());
+    assertRun(0, FOCUSED, 100, 100, 1);
+
+    // Nothing is held, so there is nothing to flush
+    coalescer.flush();
+    assertEquals(1, runs.size());
+  }
+
+  @Test
+  public void mergesEventsWithoutData() {
+    coalescer.add(FOCUSED, null, 10);
+    coalescer.add(FOCUSED, null, 20);
+    coalescer.add(FOCUSED, data("file", "a"), 30);
+    coalescer.flush();
+
+    assertEquals(2, runs.size());
+    assertRun(0, FOCUSED, 10, 20, 2);
+    assertRun(1, FOCUSED, 30, 30, 1);
+  }
+}
@@ -0,0 +1,126 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.intellij;
+
+import com.pacoapp.paco.shared.model2.Output;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventRatePolicyTest {
+  private static final PacoIntellijEventTypes.EventType TYPE = PacoIntellijEventTypes.EventType.IDE_ACTION;
+
+  @Test
+  public void admitsTypesWithoutPolicy() {
+    EventRatePolicy policy = new EventRatePolicy();
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(EventRatePolicy.Decision.ADMIT, policy.admit(TYPE));
+    }
+    assertEquals(1.0, policy.sampleRate(TYPE), 0);
+  }
+
+  @Test
+  public void rateLimitsOnceBurstIsUsed() {
+    EventRatePolicy policy = new EventRatePolicy().limit(TYPE, 1.0, 3, 0.001);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(EventRatePolicy.Decision.ADMIT, policy.admit(TYPE));
+    }
+    assertEquals(EventRatePolicy.Decision.RATE_LIMITED, policy.admit(TYPE));
+  }
+
+  @Test
+  public void samplesAtTheSampleRate() {
+    EventRatePolicy none = new EventRatePolicy().limit(TYPE, 0.0, 1000, 1000);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(EventRatePolicy.Decision.NOT_SAMPLED, none.admit(TYPE));
+    }
+
+    EventRatePolicy half = new EventRatePolicy().limit(TYPE, 0.5, 100000, 100000);
+    int admitted = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (half.admit(TYPE) == EventRatePolicy.Decision.ADMIT) {
+        admitted++;
+      }
+    }
+    // Ten standard deviations either way
+    assertTrue("admitted " + admitted, admitted > 4500 && admitted < 5500);
+  }
+
+  @Test
+  public void addsSampleRateOnlyForSampledTypes() {
+    EventRatePolicy policy = new EventRatePolicy()
+        .limit(TYPE, 0.25, 10, 10)
+        .limit(PacoIntellijEventTypes.EventType.DOCUMENT_CHANGED, 1.0, 10, 10);
+
+    List<Output> sampled = new ArrayList<Output>();
+    policy.addSampleRate(TYPE, sampled);
+    assertEquals(1, sampled.size());
+    assertEquals("sample_rate", sampled.get(0).getName());
+    assertEquals("0.25", sampled.get(0).getValue());
+
+    List<Output> unsampled = new ArrayList<Output>();
+    policy.addSampleRate(PacoIntellijEventTypes.EventType.DOCUMENT_CHANGED, unsampled);
+    policy.addSampleRate(PacoIntellijEventTypes.EventType.PROJECT_OPENED, unsampled);
+    assertTrue(unsampled.isEmpty());
+  }
+
+  @Test
+  public void overridesFromSystemProperties() {
+    String property = "pal.rate." + TYPE.name();
+    System.setProperty(property, "0.5, 2, 0.001");
+    try {
+      EventRatePolicy policy = new EventRatePolicy().limit(TYPE, 1.0, 100, 100).overrideFromSystemProperties();
+      assertEquals(0.5, policy.sampleRate(TYPE), 0);
+    } finally {
+      System.clearProperty(property);
+    }
+  }
+
+  @Test
+  public void ignoresInvalidOverrides() {
+    String property = "pal.rate." + TYPE.name();
+    System.setProperty(property, "not a policy");
+    try {
+      EventRatePolicy policy = new EventRatePolicy().limit(TYPE, 0.75, 100, 100).overrideFromSystemProperties();
+      assertEquals(0.75, policy.sampleRate(TYPE), 0);
+    } finally {
+      System.clearProperty(property);
+    }
+  }
+
+  // As wired in PacoApplicationComponent: the policy sees coalesced runs, not single repeats
+  @Test
+  public void coalescedRunTakesOneToken() {
+    final EventRatePolicy policy = new EventRatePolicy().limit(TYPE, 1.0, 1, 0.001);
+    final List<Integer> admittedRuns = new ArrayList<Integer>();
+    EventCoalescer coalescer = new EventCoalescer((type, data, firstTimeMillis, lastTimeMillis, repeatCount) -> {
+      if (policy.admit(type) == EventRatePolicy.Decision.ADMIT) {
+        admittedRuns.add(repeatCount);
+      }
+    }, 2000).coalesce(TYPE, "action_class");
+
+    for (int i = 0; i < 100; i++) {
+      coalescer.add(TYPE, Collections.singletonMap("action_class", "EditorDown"), 1000 + i * 10);
+    }
+    coalescer.flush();
+
+    assertEquals(Collections.singletonList(100), admittedRuns);
+  }
+}
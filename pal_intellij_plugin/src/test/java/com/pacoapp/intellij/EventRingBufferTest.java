@@ -0,0 +1,151 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventRingBufferTest {
+  private static final PacoIntellijEventTypes.EventType TYPE = PacoIntellijEventTypes.EventType.IDE_ACTION;
+
+  private static Map<String, String> event(int producer, int n) {
+    return Collections.singletonMap(String.valueOf(producer), String.valueOf(n));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsCapacityThatIsNotAPowerOfTwo() {
+    new EventRingBuffer(12);
+  }
+
+  @Test
+  public void drainsInPublishOrder() {
+    EventRingBuffer ring = new EventRingBuffer(8);
+    assertTrue(ring.isEmpty());
+    for (int i = 0; i < 5; i++) {
+      assertTrue(ring.publish(TYPE, event(0, i), i));
+    }
+    assertEquals(5, ring.size());
+
+    List<Long> times = new ArrayList<>();
+    assertEquals(3, ring.drain((type, data, timeMillis) -> times.add(timeMillis), 3));
+    assertEquals(2, ring.size());
+    assertEquals(2, ring.drain((type, data, timeMillis) -> times.add(timeMillis), 10));
+    assertEquals(0, ring.drain((type, data, timeMillis) -> times.add(timeMillis), 10));
+    assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), times);
+    assertTrue(ring.isEmpty());
+    assertEquals(0, ring.size());
+  }
+
+  @Test
+  public void rejectsPublishingWhenFullUntilDrained() {
+    EventRingBuffer ring = new EventRingBuffer(4);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(ring.publish(TYPE, event(0, i), i));
+    }
+    assertFalse(ring.publish(TYPE, event(0, 4), 4));
+    assertEquals(4, ring.size());
+
+    assertEquals(1, ring.drain((type, data, timeMillis) -> { }, 1));
+    assertTrue(ring.publish(TYPE, event(0, 4), 4));
+    assertFalse(ring.publish(TYPE, event(0, 5), 5));
+
+    // Wraps around to the released slot
+    List<Long> times = new ArrayList<>();
+    ring.drain((type, data, timeMillis) -> times.add(timeMillis), 10);
+    assertEquals(Arrays.asList(1L, 2L, 3L, 4L), times);
+  }
+
+  @Test
+  public void passesTheEventToTheConsumer() {
+    EventRingBuffer ring = new EventRingBuffer(2);
+    ring.publish(PacoIntellijEventTypes.EventType.IDE_ACTION, event(1, 2), 42);
+    final List<Object> drained = new ArrayList<>();
+    ring.drain((type, data, timeMillis) -> {
+      drained.add(type);
+      drained.add(data);
+      drained.add(timeMillis);
+    }, 1);
+    assertEquals(Arrays.<Object>asList(PacoIntellijEventTypes.EventType.IDE_ACTION, event(1, 2), 42L), drained);
+  }
+
+  @Test
+  public void keepsEachProducersOrderUnderContention() throws Exception {
+    final int producers = 4;
+    final int perProducer = 50000;
+    final EventRingBuffer ring = new EventRingBuffer(64);
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicBoolean failed = new AtomicBoolean();
+    final List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      final Thread thread = new Thread(() -> {
+        try {
+          start.await();
+          for (int n = 0; n < perProducer; n++) {
+            // The time carries the producer, so the consumer can check its order
+            while (!ring.publish(TYPE, event(producer, n), producer)) {
+              Thread.yield();
+            }
+          }
+        } catch (InterruptedException e) {
+          failed.set(true);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    final int[] next = new int[producers];
+    final int[] total = new int[1];
+    final String[] error = new String[1];
+    start.countDown();
+    final long deadline = System.currentTimeMillis() + 30000;
+    while (total[0] < producers * perProducer && System.currentTimeMillis() < deadline) {
+      final int drained = ring.drain((type, data, timeMillis) -> {
+        final int producer = (int) timeMillis;
+        final int n = Integer.parseInt(data.get(String.valueOf(producer)));
+        if (n != next[producer] && error[0] == null) {
+          error[0] = "producer " + producer + ": expected " + next[producer] + " but got " + n;
+        }
+        next[producer] = n + 1;
+        total[0]++;
+      }, 100);
+      assertTrue(ring.size() <= ring.capacity());
+      if (drained == 0) {
+        Thread.yield();
+      }
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertFalse(failed.get());
+    assertNull(error[0], error[0]);
+    assertEquals(producers * perProducer, total[0]);
+    assertTrue(ring.isEmpty());
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.intellij;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventSpoolTest {
+  private static final int SEGMENT_BYTES = 64;
+  private static final long MAX_BYTES = 1024 * 1024;
+  // High enough that the replay rate never gets in the way
+  private static final double REPLAY_PER_SECOND = 1e6;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private EventSpool open() {
+    return new EventSpool(folder.getRoot(), SEGMENT_BYTES, MAX_BYTES, REPLAY_PER_SECOND);
+  }
+
+  private static String json(EventSpool.Record record) {
+    return new String(record.json, StandardCharsets.UTF_8);
+  }
+
+  private int segmentFiles() {
+    return folder.getRoot().list((dir, name) -> name.endsWith(".seg")).length;
+  }
+
+  @Test
+  public void replaysUnacknowledgedEventsAfterACrash() {
+    EventSpool spool = open();
+    long first = spool.append("{\"a\":1}", true);
+    long second = spool.append("{\"a\":2}", true);
+    long third = spool.append("{\"a\":3}", true);
+    assertTrue(first >= 0 && second == first + 1 && third == second + 1);
+    // In flight, so not handed out again while this session is still sending them
+    assertFalse(spool.hasReplayable());
+    spool.force();
+
+    // Reopened without the events ever being acked, as after the IDE was killed
+    EventSpool reopened = open();
+    assertTrue(reopened.hasReplayable());
+    List<EventSpool.Record> records = reopened.takeReplay(10, Long.MAX_VALUE);
+    assertEquals(3, records.size());
+    assertEquals(first, records.get(0).id);
+    assertEquals("{\"a\":1}", json(records.get(0)));
+    assertEquals("{\"a\":2}", json(records.get(1)));
+    assertEquals("{\"a\":3}", json(records.get(2)));
+    assertFalse(reopened.hasReplayable());
+  }
+
+  @Test
+  public void doesNotReplayAcknowledgedEvents() {
+    EventSpool spool = open();
+    long first = spool.append("{\"a\":1}", true);
+    long second = spool.append("{\"a\":2}", true);
+    spool.ack(new long[] {first});
+
+    EventSpool reopened = open();
+    List<EventSpool.Record> records = reopened.takeReplay(10, Long.MAX_VALUE);
+    assertEquals(1, records.size());
+    assertEquals(second, records.get(0).id);
+  }
+
+  @Test
+  public void continuesIdsAfterReopening() {
+    EventSpool spool = open();
+    long first = spool.append("{}", false);
+    long second = spool.append("{}", false);
+    spool.ack(new long[] {first, second});
+
+    long next = open().append("{}", false);
+    assertTrue(next > second);
+  }
+
+  @Test
+  public void replaysReleasedEventsOnly() {
+    EventSpool spool = open();
+    long first = spool.append("{\"a\":1}", true);
+    long second = spool.append("{\"a\":2}", true);
+    assertTrue(spool.takeReplay(10, Long.MAX_VALUE).isEmpty());
+
+    spool.release(new long[] {second});
+    List<EventSpool.Record> records = spool.takeReplay(10, Long.MAX_VALUE);
+    assertEquals(1, records.size());
+    assertEquals(second, records.get(0).id);
+    // Handed out, so in flight again
+    assertTrue(spool.takeReplay(10, Long.MAX_VALUE).isEmpty());
+
+    spool.ack(new long[] {first, second});
+    spool.release(new long[] {first, second});
+    assertFalse(spool.hasReplayable());
+  }
+
+  @Test
+  public void takesReplayUpToTheLimits() {
+    EventSpool spool = open();
+    for (int i = 0; i < 5; i++) {
+      spool.append("{\"a\":" + i + "}", false);
+    }
+    assertEquals(2, spool.takeReplay(2, Long.MAX_VALUE).size());
+    // Stops once the byte limit is reached, after at least one event
+    assertEquals(1, spool.takeReplay(10, 1).size());
+    assertEquals(2, spool.takeReplay(10, Long.MAX_VALUE).size());
+  }
+
+  @Test
+  public void deletesFullyAcknowledgedSegments() {
+    EventSpool spool = open();
+    // Each record takes 5 + 20 bytes, so a 64-byte segment holds two of them
+    long[] ids = new long[6];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = spool.append("{\"event\":\"" + i + "-------\"}", true);
+    }
+    assertEquals(3, segmentFiles());
+
+    // A segment with an unacknowledged event is kept
+    spool.ack(new long[] {ids[0]});
+    assertEquals(3, segmentFiles());
+    spool.ack(new long[] {ids[1], ids[2], ids[3]});
+    assertEquals(1, segmentFiles());
+    // The active segment is kept, as it is still being written
+    spool.ack(new long[] {ids[4], ids[5]});
+    assertEquals(1, segmentFiles());
+
+    // Rolling over deletes it
+    spool.append("{}", false);
+    assertEquals(1, segmentFiles());
+    assertEquals(1, open().takeReplay(10, Long.MAX_VALUE).size());
+  }
+
+  @Test
+  public void deletesFullyAcknowledgedSegmentsLeftBehindOnReopening() {
+    EventSpool spool = open();
+    long id = spool.append("{}", false);
+    spool.ack(new long[] {id});
+    assertEquals(1, segmentFiles());
+
+    EventSpool reopened = open();
+    assertEquals(0, segmentFiles());
+    assertFalse(reopened.hasReplayable());
+  }
+
+  @Test
+  public void rejectsAppendsOnceFull() {
+    EventSpool spool = new EventSpool(folder.getRoot(), SEGMENT_BYTES, 2 * SEGMENT_BYTES, REPLAY_PER_SECOND);
+    int appended = 0;
+    while (spool.append("{\"event\":\"-----------\"}", false) >= 0) {
+      appended++;
+    }
+    assertEquals(4, appended);
+
+    // Space is freed once a segment is acknowledged
+    spool.ack(new long[] {0, 1});
+    assertTrue(spool.append("{\"event\":\"-----------\"}", false) >= 0);
+  }
+
+  @Test
+  public void storesEventsLargerThanASegment() {
+    EventSpool spool = open();
+    StringBuilder large = new StringBuilder("{\"a\":\"");
+    for (int i = 0; i < 10 * SEGMENT_BYTES; i++) {
+      large.append('x');
+    }
+    large.append("\"}");
+    long id = spool.append(large.toString(), false);
+    assertTrue(id >= 0);
+
+    List<EventSpool.Record> records = open().takeReplay(10, Long.MAX_VALUE);
+    assertEquals(1, records.size());
+    assertEquals(large.toString(), json(records.get(0)));
+  }
+}
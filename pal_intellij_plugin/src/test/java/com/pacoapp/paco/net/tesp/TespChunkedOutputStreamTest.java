@@ -0,0 +1,121 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp;
+
+import com.pacoapp.paco.net.tesp.message.TespMessage;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestChunk;
+import com.pacoapp.paco.net.tesp.message.response.TespResponse;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseSuccess;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TespChunkedOutputStreamTest {
+    // Collects the chunks, taking the given time to write each
+    private static class RecordingWriter implements TespChunkedOutputStream.ChunkWriter {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final long writeMillis;
+        int chunks;
+        boolean released;
+
+        RecordingWriter(long writeMillis) {
+            this.writeMillis = writeMillis;
+        }
+
+        @Override
+        public void write(TespRequestChunk chunk) throws IOException {
+            try {
+                Thread.sleep(writeMillis);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            final byte[] bytes = chunk.getData();
+            data.write(bytes, 0, bytes.length);
+            chunks++;
+        }
+
+        @Override
+        public CompletableFuture<TespResponse> writeLast(TespRequestChunk chunk) throws IOException {
+            write(chunk);
+            return CompletableFuture.completedFuture(new TespResponseSuccess());
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private static TespChunkedOutputStream open(RecordingWriter writer, int chunkTimeoutMs) {
+        return new TespChunkedOutputStream(TespMessage.tespCodeRequestAddEvent, writer, chunkTimeoutMs);
+    }
+
+    private static byte[] payload(int size) {
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    @Test
+    public void writesThePayloadInChunks() throws Exception {
+        final RecordingWriter writer = new RecordingWriter(0);
+        final TespChunkedOutputStream out = open(writer, 1000);
+        final byte[] payload = payload(TespChunkedOutputStream.chunkSize * 2 + 10);
+        out.write(payload);
+        out.close();
+        assertArrayEquals(payload, writer.data.toByteArray());
+        assertEquals(3, writer.chunks);
+        assertTrue(writer.released);
+        assertTrue(out.getResponse().get() instanceof TespResponseSuccess);
+    }
+
+    @Test
+    public void waitsForASlowProducer() throws Exception {
+        final RecordingWriter writer = new RecordingWriter(0);
+        final TespChunkedOutputStream out = open(writer, 20);
+        final byte[] payload = payload(TespChunkedOutputStream.chunkSize / 2);
+        for (int i = 0; i < 4; i++) {
+            out.write(payload);
+            Thread.sleep(50);
+        }
+        out.close();
+        assertEquals(4 * payload.length, writer.data.size());
+    }
+
+    @Test
+    public void failsOnASlowWrite() throws Exception {
+        final RecordingWriter writer = new RecordingWriter(50);
+        final TespChunkedOutputStream out = open(writer, 20);
+        try {
+            out.write(payload(TespChunkedOutputStream.chunkSize + 1));
+            fail("A chunk written too slowly was accepted");
+        } catch (SocketTimeoutException expected) {
+            assertTrue(writer.released);
+        }
+        // Closing a failed stream does nothing
+        out.close();
+        assertEquals(1, writer.chunks);
+    }
+}
@@ -0,0 +1,194 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp;
+
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEvent;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEventBinary;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEventSession;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseAnswer;
+import com.pacoapp.paco.net.tesp.message.response.TespResponsePaused;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseSuccess;
+import com.pacoapp.paco.shared.model2.PacoEvent;
+import com.pacoapp.paco.shared.model2.PacoEventUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TespClientTest {
+    private TespLoopbackServer server;
+    private TespClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TespLoopbackServer();
+        client = server.newClient();
+        client.connect();
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void negotiatesTheLatestVersion() throws Exception {
+        assertEquals(TespCodec.protocolVersion, client.getProtocolVersion());
+    }
+
+    @Test
+    public void fallsBackForAServerThatRejectsTheHandshake() throws Exception {
+        client.close();
+        server.setProtocolVersion(1);
+        client = server.newClient();
+        client.connect();
+        assertEquals(1, client.getProtocolVersion());
+        assertTrue(client.send(TespRequestAddEvent.withPayload("[]")) instanceof TespResponseSuccess);
+    }
+
+    @Test
+    public void retriesAHandshakeLostWithTheConnection() throws Exception {
+        // Drops the first connection during the handshake, like a server that is restarting, and
+        // answers the handshake on the next one
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            final Thread restartingServer = new Thread(() -> {
+                try {
+                    try (Socket first = serverSocket.accept()) {
+                        first.getInputStream().read(new byte[64]);
+                    }
+                    try (Socket second = serverSocket.accept()) {
+                        second.getInputStream().read(new byte[64]);
+                        second.getOutputStream().write(TespCodec.getInstance().encode(
+                                TespResponseAnswer.withPayload(String.valueOf(TespCodec.protocolVersion))));
+                        second.getInputStream().read();
+                    }
+                } catch (IOException e) {
+                    // Closed by the test
+                }
+            });
+            restartingServer.setDaemon(true);
+            restartingServer.start();
+
+            final TespClient restarting = new TespClient(InetAddress.getLoopbackAddress().getHostAddress(),
+                    serverSocket.getLocalPort());
+            try {
+                try {
+                    restarting.connect();
+                    fail("Connected without a handshake");
+                } catch (IOException expected) {
+                    // Tried again on the next connection rather than settling on version 1
+                }
+                restarting.connect();
+                assertEquals(TespCodec.protocolVersion, restarting.getProtocolVersion());
+            } finally {
+                restarting.close();
+            }
+        }
+    }
+
+    @Test
+    public void sendsEventsInEveryEncoding() throws Exception {
+        final List<String> expected = new ArrayList<>();
+        for (int batch = 0; batch < 30; batch++) {
+            final List<PacoEvent> events = TespEventCodecTest.ideEvents(batch * 10, 10);
+            final String json = PacoEventUtil.jsonify(events);
+            expected.add(json);
+            switch (batch % 3) {
+                case 0:
+                    assertTrue(client.send(TespRequestAddEvent.withPayload(json)) instanceof TespResponseSuccess);
+                    break;
+                case 1:
+                    assertTrue(client.send(TespRequestAddEventBinary.withPayload(events)) instanceof TespResponseSuccess);
+                    break;
+                default:
+                    assertTrue(client.send(TespRequestAddEventSession.withPayload(events)) instanceof TespResponseSuccess);
+            }
+        }
+        assertEquals(expected, server.getAddedEvents());
+    }
+
+    @Test
+    public void keepsTheSessionInStepWhilePaused() throws Exception {
+        final List<String> expected = new ArrayList<>();
+        for (int batch = 0; batch < 20; batch++) {
+            server.setPaused(batch % 5 == 2);
+            final List<PacoEvent> events = TespEventCodecTest.ideEvents(batch * 10, 10);
+            if (batch % 5 == 2) {
+                assertTrue(client.send(TespRequestAddEventSession.withPayload(events)) instanceof TespResponsePaused);
+            } else {
+                expected.add(PacoEventUtil.jsonify(events));
+                assertTrue(client.send(TespRequestAddEventSession.withPayload(events)) instanceof TespResponseSuccess);
+            }
+        }
+        assertEquals(expected, server.getAddedEvents());
+    }
+
+    @Test
+    public void buffersStreamsForServersWithoutChunksUpToTheLimit() throws Exception {
+        client.close();
+        server.setProtocolVersion(1);
+        client = server.newClient();
+        client.connect();
+        assertEquals(1, client.getProtocolVersion());
+
+        final byte[] payload = "[\"small enough\"]".getBytes(StandardCharsets.UTF_8);
+        final TespChunkedOutputStream small = client.openAddEventStream(payload.length);
+        small.write(payload);
+        small.close();
+        assertTrue(small.getResponse().get() instanceof TespResponseSuccess);
+        assertEquals(Collections.singletonList("[\"small enough\"]"), server.getAddedEvents());
+
+        final TespChunkedOutputStream large = client.openAddEventStream(100 * 1024);
+        try {
+            large.write(new byte[200 * 1024]);
+            large.close();
+            fail("A payload over the limit was sent");
+        } catch (IOException expected) {
+            // Failed before anything was sent
+        }
+        assertEquals(1, server.getAddedEvents().size());
+        // The stream was released
+        client.openAddEventStream().abort();
+    }
+
+    @Test
+    public void sendsPipelinedBatches() throws Exception {
+        final List<String> expected = new ArrayList<>();
+        final List<TespRequestAddEventSession> requests = new ArrayList<>();
+        for (int batch = 0; batch < 50; batch++) {
+            final List<PacoEvent> events = TespEventCodecTest.ideEvents(batch * 10, 10);
+            expected.add(PacoEventUtil.jsonify(events));
+            requests.add(TespRequestAddEventSession.withPayload(events));
+        }
+        for (TespRequestAddEventSession request : requests) {
+            client.sendAsync(request);
+        }
+        assertTrue(server.awaitAddedEvents(expected.size(), 10000));
+        assertEquals(expected, server.getAddedEvents());
+    }
+}
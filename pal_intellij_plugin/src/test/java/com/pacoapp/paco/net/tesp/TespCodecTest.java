@@ -0,0 +1,124 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp;
+
+import com.pacoapp.paco.net.tesp.message.TespMessage;
+import com.pacoapp.paco.net.tesp.message.TespPayload;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEvent;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseAnswer;
+import com.pacoapp.paco.net.tesp.message.response.TespResponsePaused;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseSuccess;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TespCodecTest {
+    private final TespCodec tespCodec = TespCodec.getInstance();
+
+    private static String largePayload() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder.append("é").append(i);
+        }
+        return builder.toString();
+    }
+
+    // Frames with and without payloads, an empty payload, and one larger than the decoder's initial buffer
+    private static List<TespMessage> messages() {
+        return Arrays.asList(new TespResponseSuccess(), TespResponseAnswer.withPayload("hello"),
+                new TespResponsePaused(), TespRequestAddEvent.withPayload(largePayload()),
+                TespResponseAnswer.withPayload(""));
+    }
+
+    private byte[] encode(List<TespMessage> messages) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (TespMessage message : messages) {
+            final byte[] frame = tespCodec.encode(message);
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> describe(List<TespMessage> messages) {
+        final List<String> descriptions = new ArrayList<>();
+        for (TespMessage message : messages) {
+            descriptions.add(message.getClass().getSimpleName()
+                    + (message instanceof TespPayload ? " " + ((TespPayload<?>) message).getPayload() : ""));
+        }
+        return descriptions;
+    }
+
+    // Decodes the bytes handed over in slices ending at the given offsets, then the rest
+    private List<TespMessage> decode(byte[] bytes, int... splits) throws TespDecodingException {
+        final TespCodec.Decoder decoder = tespCodec.newDecoder();
+        final List<TespMessage> decoded = new ArrayList<>();
+        int from = 0;
+        for (int split : splits) {
+            decoder.decode(ByteBuffer.wrap(bytes, from, split - from), decoded::add);
+            from = split;
+        }
+        decoder.decode(ByteBuffer.wrap(bytes, from, bytes.length - from), decoded::add);
+        assertFalse(decoder.hasPartialMessage());
+        return decoded;
+    }
+
+    @Test
+    public void decodesSeveralFramesInOneRead() throws Exception {
+        final List<TespMessage> messages = messages();
+        assertEquals(describe(messages), describe(decode(encode(messages))));
+    }
+
+    @Test
+    public void decodesAFrameSplitAtEveryOffset() throws Exception {
+        final List<TespMessage> messages = Arrays.asList(TespResponseAnswer.withPayload("split answer"),
+                new TespResponseSuccess());
+        final byte[] bytes = encode(messages);
+        for (int split = 1; split < bytes.length; split++) {
+            assertEquals("Split at " + split, describe(messages), describe(decode(bytes, split)));
+        }
+    }
+
+    @Test
+    public void decodesAPayloadSizeSplitAcrossReads() throws Exception {
+        final List<TespMessage> messages = Arrays.asList(TespRequestAddEvent.withPayload(largePayload()),
+                TespResponseAnswer.withPayload("after"));
+        final byte[] bytes = encode(messages);
+        for (int split = TespCodec.payloadSizeOffset + 1; split < TespCodec.payloadOffset; split++) {
+            assertEquals("Split at " + split, describe(messages), describe(decode(bytes, split)));
+        }
+        // And one byte of the size at a time
+        assertEquals(describe(messages), describe(decode(bytes, 1, 2, 3, 4, 5)));
+    }
+
+    @Test
+    public void decodesAByteAtATime() throws Exception {
+        final List<TespMessage> messages = messages();
+        final byte[] bytes = encode(messages);
+        final TespCodec.Decoder decoder = tespCodec.newDecoder();
+        final List<TespMessage> decoded = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i++) {
+            decoder.decode(ByteBuffer.wrap(bytes, i, 1), decoded::add);
+        }
+        assertFalse(decoder.hasPartialMessage());
+        assertEquals(describe(messages), describe(decoded));
+    }
+}
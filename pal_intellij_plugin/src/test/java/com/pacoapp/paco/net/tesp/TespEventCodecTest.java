@@ -0,0 +1,197 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp;
+
+import com.pacoapp.paco.shared.model2.Output;
+import com.pacoapp.paco.shared.model2.PacoEvent;
+import com.pacoapp.paco.shared.model2.PacoEventUtil;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TespEventCodecTest {
+    // The value of the leading flags of a session frame that resets the session
+    private static final int resetFlag = 1;
+
+    static PacoEvent ideEvent(int i) {
+        final PacoEvent event = new PacoEvent();
+        event.setId((long) i);
+        event.setExperimentId(123456789L);
+        event.setExperimentName("IntelliJ");
+        event.setExperimentVersion(3);
+        event.setExperimentGroupName("**IntelliJLoggerProcess");
+        event.setWho("me");
+        event.setAppId("intellij");
+        event.setTimezone("Europe/Berlin");
+        event.setResponseTimeMillis(1600000000000L + i * 1000L);
+        final List<Output> outputs = new ArrayList<>();
+        outputs.add(new Output("type", "IDE_ACTION"));
+        outputs.add(new Output("action_class", "com.intellij.openapi.editor.actions.Action" + (i % 7)));
+        outputs.add(new Output("file", "/home/me/src/Foo" + (i % 5) + ".java"));
+        outputs.add(new Output("count", String.valueOf(i - 3)));
+        event.setWhat(outputs);
+        return event;
+    }
+
+    static List<PacoEvent> ideEvents(int from, int count) {
+        final List<PacoEvent> events = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            events.add(ideEvent(i));
+        }
+        return events;
+    }
+
+    private static void assertSameJson(List<PacoEvent> expected, List<PacoEvent> actual) {
+        assertEquals(PacoEventUtil.jsonify(expected), PacoEventUtil.jsonify(actual));
+    }
+
+    @Test
+    public void roundTripsOneShot() {
+        final List<PacoEvent> events = ideEvents(0, 50);
+        assertSameJson(events, TespEventCodec.decode(TespEventCodec.encode(events)));
+    }
+
+    @Test
+    public void roundTripsAnEmptyBatch() {
+        assertSameJson(Collections.emptyList(),
+                TespEventCodec.decode(TespEventCodec.encode(Collections.<PacoEvent>emptyList())));
+    }
+
+    @Test
+    public void roundTripsAnEventWithoutFields() {
+        final List<PacoEvent> events = Collections.singletonList(new PacoEvent());
+        assertSameJson(events, TespEventCodec.decode(TespEventCodec.encode(events)));
+    }
+
+    @Test
+    public void roundTripsNullOutputs() {
+        final PacoEvent event = ideEvent(1);
+        final List<Output> outputs = new ArrayList<>();
+        outputs.add(null);
+        outputs.add(new Output("name", null));
+        outputs.add(new Output(null, "value"));
+        outputs.add(new Output("", ""));
+        event.setWhat(outputs);
+        final List<PacoEvent> events = Collections.singletonList(event);
+
+        final List<PacoEvent> decoded = TespEventCodec.decode(TespEventCodec.encode(events));
+        assertSameJson(events, decoded);
+        assertNull(decoded.get(0).getWhat().get(0));
+        assertNull(decoded.get(0).getWhat().get(1).getValue());
+    }
+
+    @Test
+    public void roundTripsZonedTimes() {
+        final PacoEvent event = ideEvent(1);
+        event.setResponseTime(new DateTime(1600000000000L, DateTimeZone.forOffsetHoursMinutes(5, 30)));
+        event.setScheduledTime(new DateTime(1500000000000L, DateTimeZone.forOffsetHours(-8)));
+        event.setWhen(new DateTime(1400000000000L));
+        final PacoEvent other = ideEvent(2);
+        // Far from the base time of the frame, and in another zone
+        other.setResponseTime(new DateTime(10000L, DateTimeZone.forOffsetHours(14)));
+        final List<PacoEvent> events = Arrays.asList(event, other);
+
+        final List<PacoEvent> decoded = TespEventCodec.decode(TespEventCodec.encode(events));
+        assertSameJson(events, decoded);
+        assertEquals(event.getResponseTime(), decoded.get(0).getResponseTime());
+        assertEquals(event.getScheduledTime(), decoded.get(0).getScheduledTime());
+        assertEquals(other.getResponseTime(), decoded.get(1).getResponseTime());
+    }
+
+    @Test
+    public void roundTripsUnusualStrings() {
+        final PacoEvent event = ideEvent(1);
+        event.setWho("😀 日本 \"quoted\" \\ / \u0001\t\n</script>");
+        event.setBlobs(new String[] {"", "blob 😀"});
+        event.getWhat().add(new Output("long", "-9223372036854775808"));
+        event.getWhat().add(new Output("not canonical", "007"));
+        final List<PacoEvent> events = Collections.singletonList(event);
+        assertSameJson(events, TespEventCodec.decode(TespEventCodec.encode(events)));
+    }
+
+    @Test
+    public void roundTripsFramesOfOneSession() {
+        final TespEventCodec.Session encoding = new TespEventCodec.Session();
+        final TespEventCodec.Session decoding = new TespEventCodec.Session();
+        int firstSize = 0;
+        for (int frame = 0; frame < 10; frame++) {
+            final List<PacoEvent> events = ideEvents(frame * 20, 20);
+            if (frame == 5) {
+                // A change to the envelope carries on to the following events
+                events.get(3).setExperimentName("Other");
+            }
+            final byte[] payload = TespEventCodec.encode(events, encoding);
+            assertEquals(0, payload[0]);
+            assertSameJson(events, TespEventCodec.decode(payload, decoding));
+            if (frame == 0) {
+                firstSize = payload.length;
+            } else {
+                // The strings and the envelope have been sent already
+                assertTrue(payload.length < firstSize);
+            }
+        }
+    }
+
+    @Test
+    public void resetsTheSessionPastTheStringLimit() {
+        final TespEventCodec.Session encoding = new TespEventCodec.Session();
+        final TespEventCodec.Session decoding = new TespEventCodec.Session();
+        final PacoEvent event = ideEvent(0);
+        for (int i = 0; i < 20000; i++) {
+            event.getWhat().add(new Output("key" + i, "value" + i));
+        }
+        final List<PacoEvent> large = Collections.singletonList(event);
+        assertSameJson(large, TespEventCodec.decode(TespEventCodec.encode(large, encoding), decoding));
+
+        final List<PacoEvent> next = ideEvents(1, 5);
+        final byte[] payload = TespEventCodec.encode(next, encoding);
+        assertEquals(resetFlag, payload[0]);
+        assertSameJson(next, TespEventCodec.decode(payload, decoding));
+
+        final List<PacoEvent> after = ideEvents(6, 5);
+        final byte[] afterPayload = TespEventCodec.encode(after, encoding);
+        assertEquals(0, afterPayload[0]);
+        assertSameJson(after, TespEventCodec.decode(afterPayload, decoding));
+    }
+
+    @Test
+    public void resetsTheSessionOnRequest() {
+        final TespEventCodec.Session encoding = new TespEventCodec.Session();
+        final TespEventCodec.Session decoding = new TespEventCodec.Session();
+        TespEventCodec.encode(ideEvents(0, 5), encoding);
+        encoding.resetOnNextFrame();
+
+        // Decodes without the frame before, which the decoding end never saw
+        final List<PacoEvent> events = ideEvents(5, 5);
+        final byte[] payload = TespEventCodec.encode(events, encoding);
+        assertEquals(resetFlag, payload[0]);
+        assertSameJson(events, TespEventCodec.decode(payload, decoding));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsATruncatedPayload() {
+        final byte[] payload = TespEventCodec.encode(ideEvents(0, 10));
+        TespEventCodec.decode(Arrays.copyOf(payload, payload.length / 2));
+    }
+}
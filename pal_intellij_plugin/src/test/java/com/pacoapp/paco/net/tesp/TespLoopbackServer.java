@@ -0,0 +1,324 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pacoapp.paco.net.tesp;
+
+import com.pacoapp.paco.net.tesp.message.TespMessage;
+import com.pacoapp.paco.net.tesp.message.TespPayload;
+import com.pacoapp.paco.net.tesp.message.request.*;
+import com.pacoapp.paco.net.tesp.message.response.*;
+import com.pacoapp.paco.shared.model2.PacoEventUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * An in-process stand-in for the PAL event server, for exercising {@link TespClient} without the Dart
+ * server or a network. It speaks the same framing and codes, answers requests one at a time in order
+ * like the Dart server, and records every request it accepts.
+ *
+ * Faults can be injected while it runs: a fixed latency before every response, a paused mode in which
+ * AddEvent requests are answered with {@link TespResponsePaused} and not recorded, connections dropped
+ * at random instead of answering a request, and responses written a few bytes at a time.
+ */
+public class TespLoopbackServer implements AutoCloseable {
+    private static final Logger log = Logger.getLogger(TespLoopbackServer.class.getName());
+
+    private static final int defaultChunkTimeoutMs = 5000;
+    private static final int readBufferSize = 8192;
+
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private final Random random;
+    private final TespCodec tespCodec = TespCodec.getInstance();
+
+    private volatile int latencyMs;
+    private volatile boolean paused;
+    private volatile double dropProbability;
+    private volatile int partialWriteBytes;
+    private volatile int protocolVersion = TespCodec.protocolVersion;
+    private volatile boolean closed;
+
+    private final List<TespRequest> received = new CopyOnWriteArrayList<>();
+    private final List<String> addedEvents = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger dropCount = new AtomicInteger();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    public TespLoopbackServer() throws IOException {
+        this(new Random());
+    }
+
+    // A seeded Random makes the dropped connections reproducible
+    public TespLoopbackServer(Random random) throws IOException {
+        this.random = random;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread acceptor = new Thread(this::accept, "TespLoopbackServer acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public TespClient newClient() {
+        return new TespClient(InetAddress.getLoopbackAddress().getHostAddress(), getPort());
+    }
+
+    public void setLatencyMs(int latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * The probability that the connection is dropped instead of answering a request other than the
+     * handshake. The request is then not recorded.
+     */
+    public void setDropProbability(double dropProbability) {
+        this.dropProbability = dropProbability;
+    }
+
+    /**
+     * If positive, responses are written at most this many bytes at a time.
+     */
+    public void setPartialWriteBytes(int partialWriteBytes) {
+        this.partialWriteBytes = partialWriteBytes;
+    }
+
+    /**
+     * Version 1 behaves like a server that predates the handshake: it rejects version 2 frames and
+     * closes the connection.
+     */
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * All requests answered so far, in the order they arrived. Chunks are recorded as the assembled
+     * request.
+     */
+    public List<TespRequest> getReceived() {
+        return new ArrayList<>(received);
+    }
+
+    /**
+     * The payloads of all recorded AddEvent requests, deflated, binary or not.
+     */
+    public List<String> getAddedEvents() {
+        return new ArrayList<>(addedEvents);
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public int getDropCount() {
+        return dropCount.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Waits until at least {@code count} AddEvent requests are recorded. Returns false on timeout.
+     */
+    public boolean awaitAddedEvents(int count, long timeoutMs) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (addedEvents.size() < count) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Drops all open connections, like a server restart.
+     */
+    public void dropConnections() {
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.warning("Exception closing the server socket: " + e.getMessage());
+        }
+        dropConnections();
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warning("Stopped accepting connections: " + e.getMessage());
+                }
+                return;
+            }
+            connectionCount.incrementAndGet();
+            sockets.add(socket);
+            final Thread handler = new Thread(() -> serve(socket), "TespLoopbackServer connection");
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        final TespCodec.Decoder decoder = tespCodec.newDecoder();
+        final TespChunkAssembler assembler = new TespChunkAssembler(defaultChunkTimeoutMs);
+        final TespEventCodec.Session eventSession = new TespEventCodec.Session();
+        final List<TespMessage> messages = new ArrayList<>();
+        final byte[] buffer = new byte[readBufferSize];
+        try {
+            socket.setTcpNoDelay(true);
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = socket.getOutputStream();
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                bytesReceived.addAndGet(count);
+                if (protocolVersion < 2 && (buffer[0] & 0xFF) > protocolVersion) {
+                    // Only checks the start of a read, which is enough for the handshake on a new connection
+                    respond(out, TespResponseInvalidRequest.withPayload("unsupported protocol version: " + buffer[0]));
+                    break;
+                }
+                try {
+                    decoder.decode(ByteBuffer.wrap(buffer, 0, count), messages::add);
+                } catch (TespDecodingException e) {
+                    respond(out, TespResponseInvalidRequest.withPayload(e.getMessage()));
+                    break;
+                }
+                for (TespMessage message : messages) {
+                    // Handshakes are never dropped, or the client would settle on protocol version 1
+                    if (!(message instanceof TespRequestHandshake) && random.nextDouble() < dropProbability) {
+                        dropCount.incrementAndGet();
+                        return;
+                    }
+                    TespResponse response;
+                    try {
+                        response = handle((TespRequest) message, assembler, eventSession);
+                    } catch (TespDecodingException e) {
+                        response = TespResponseInvalidRequest.withPayload(e.getMessage());
+                    }
+                    if (response != null) {
+                        respond(out, response);
+                    }
+                }
+                messages.clear();
+            }
+        } catch (SocketException e) {
+            // Closed by the client, or by dropConnections()
+        } catch (IOException | InterruptedException e) {
+            log.warning("Connection failed: " + e.getMessage());
+        } finally {
+            sockets.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    // Returns null for requests that aren't answered, i.e. chunks other than the last one
+    private TespResponse handle(TespRequest request, TespChunkAssembler assembler, TespEventCodec.Session eventSession)
+            throws TespDecodingException {
+        if (request instanceof TespRequestChunk) {
+            final TespMessage assembled = assembler.add((TespRequestChunk) request);
+            if (assembled == null) {
+                return null;
+            }
+            request = (TespRequest) assembled;
+        }
+
+        if (request instanceof TespRequestAddEventSession) {
+            // Even when paused, so the session stays in step with the client's
+            try {
+                ((TespRequestAddEventSession) request).decode(eventSession);
+            } catch (IllegalArgumentException e) {
+                throw new TespDecodingException(e.getMessage());
+            }
+        }
+
+        if (request instanceof TespRequestHandshake) {
+            return TespResponseAnswer.withPayload(String.valueOf(protocolVersion));
+        } else if (request instanceof TespRequestAddEvent || request instanceof TespRequestAddEventDeflated
+                || request instanceof TespRequestAddEventBinary || request instanceof TespRequestAddEventSession) {
+            if (paused) {
+                return new TespResponsePaused();
+            }
+            received.add(request);
+            if (request instanceof TespRequestAddEventBinary || request instanceof TespRequestAddEventSession) {
+                // Recorded as the JSON the events would have been sent as otherwise
+                addedEvents.add(PacoEventUtil.jsonify(((TespPayload<?>) request).getPayload()));
+            } else {
+                addedEvents.add((String) ((TespPayload<?>) request).getPayload());
+            }
+            return new TespResponseSuccess();
+        } else if (request instanceof TespRequestPause) {
+            paused = true;
+        } else if (request instanceof TespRequestResume) {
+            paused = false;
+        }
+        received.add(request);
+        return new TespResponseSuccess();
+    }
+
+    private void respond(OutputStream out, TespResponse response) throws IOException, InterruptedException {
+        if (latencyMs > 0) {
+            Thread.sleep(latencyMs);
+        }
+        final byte[] bytes = tespCodec.encode(response);
+        final int step = partialWriteBytes > 0 ? partialWriteBytes : bytes.length;
+        for (int offset = 0; offset < bytes.length; offset += step) {
+            out.write(bytes, offset, Math.min(step, bytes.length - offset));
+            out.flush();
+            if (step < bytes.length) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+}
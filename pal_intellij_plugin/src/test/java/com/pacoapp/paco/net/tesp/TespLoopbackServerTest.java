@@ -0,0 +1,206 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp;
+
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEvent;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestPause;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestPing;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestResume;
+import com.pacoapp.paco.net.tesp.message.response.TespResponse;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseError;
+import com.pacoapp.paco.net.tesp.message.response.TespResponsePaused;
+import com.pacoapp.paco.net.tesp.message.response.TespResponseSuccess;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises the faults the loopback server injects, and how the client copes with them.
+ */
+public class TespLoopbackServerTest {
+    private TespLoopbackServer server;
+    private TespClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        // Seeded, so the dropped connections are the same on every run
+        server = new TespLoopbackServer(new Random(1));
+        client = server.newClient();
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    private static String errorCode(TespResponse response) {
+        assertTrue(String.valueOf(response), response instanceof TespResponseError);
+        return ((TespResponseError) response).getErrorCode();
+    }
+
+    // The server closing with a request outstanding, or the connection failing as the client writes
+    private static void assertLostConnection(TespResponse response) {
+        final String errorCode = errorCode(response);
+        assertTrue(errorCode, errorCode.equals(TespResponseError.tespClientErrorServerCloseEarly)
+                || errorCode.equals(TespResponseError.tespClientErrorLostConnection));
+    }
+
+    @Test
+    public void recordsAcceptedEventsInOrder() throws Exception {
+        client.connect();
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            expected.add("[" + i + "]");
+            assertTrue(client.send(TespRequestAddEvent.withPayload("[" + i + "]")) instanceof TespResponseSuccess);
+        }
+        assertEquals(expected, server.getAddedEvents());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void answersPipelinedRequestsInOrderDespiteLatency() throws Exception {
+        client.connect();
+        server.setLatencyMs(20);
+        final List<CompletableFuture<TespResponse>> futures = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            futures.add(client.sendAsync(TespRequestAddEvent.withPayload("[" + i + "]")));
+        }
+        for (CompletableFuture<TespResponse> future : futures) {
+            assertTrue(future.get() instanceof TespResponseSuccess);
+        }
+        // Answered one at a time, like the Dart server
+        assertTrue(System.nanoTime() - start >= 10 * 20 * 1000000L);
+        assertEquals(Arrays.asList("[0]", "[1]", "[2]", "[3]", "[4]", "[5]", "[6]", "[7]", "[8]", "[9]"),
+                server.getAddedEvents());
+    }
+
+    @Test
+    public void timesOutResponsesSlowerThanTheResponseTimeout() throws Exception {
+        client.connect();
+        server.setLatencyMs(3000);
+        assertEquals(TespResponseError.tespClientErrorResponseTimeout,
+                errorCode(client.send(new TespRequestPing())));
+        assertTrue(!client.isConnected());
+    }
+
+    @Test
+    public void answersAddEventsWithPausedWhilePaused() throws Exception {
+        client.connect();
+        server.setPaused(true);
+        assertTrue(client.send(TespRequestAddEvent.withPayload("[1]")) instanceof TespResponsePaused);
+        server.setPaused(false);
+        assertTrue(client.send(TespRequestAddEvent.withPayload("[2]")) instanceof TespResponseSuccess);
+
+        // Pause and Resume requests control the same mode
+        assertTrue(client.send(new TespRequestPause()) instanceof TespResponseSuccess);
+        assertTrue(client.send(TespRequestAddEvent.withPayload("[3]")) instanceof TespResponsePaused);
+        // Requests other than AddEvent are still answered
+        assertTrue(client.send(new TespRequestPing()) instanceof TespResponseSuccess);
+        assertTrue(client.send(new TespRequestResume()) instanceof TespResponseSuccess);
+        assertTrue(client.send(TespRequestAddEvent.withPayload("[4]")) instanceof TespResponseSuccess);
+
+        assertEquals(Arrays.asList("[2]", "[4]"), server.getAddedEvents());
+    }
+
+    @Test
+    public void failsRequestsOnADroppedConnection() throws Exception {
+        client.connect();
+        server.setDropProbability(1);
+        assertLostConnection(client.send(TespRequestAddEvent.withPayload("[1]")));
+        assertEquals(1, server.getDropCount());
+        assertEquals(Collections.emptyList(), server.getAddedEvents());
+
+        server.setDropProbability(0);
+        client.connect();
+        assertTrue(client.send(TespRequestAddEvent.withPayload("[2]")) instanceof TespResponseSuccess);
+        assertEquals(Collections.singletonList("[2]"), server.getAddedEvents());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void dropsSomeConnectionsAtRandom() throws Exception {
+        server.setDropProbability(0.2);
+        int accepted = 0;
+        int lost = 0;
+        for (int i = 0; i < 50; i++) {
+            if (!client.isConnected()) {
+                client.connect();
+            }
+            final TespResponse response = client.send(TespRequestAddEvent.withPayload("[" + i + "]"));
+            if (response instanceof TespResponseSuccess) {
+                accepted++;
+            } else {
+                assertLostConnection(response);
+                lost++;
+            }
+        }
+        assertTrue(lost > 0);
+        assertEquals(lost, server.getDropCount());
+        assertEquals(accepted, server.getAddedEvents().size());
+    }
+
+    @Test
+    public void reconnectsAfterTheServerDropsConnections() throws Exception {
+        client.start();
+        waitUntilConnected();
+        server.dropConnections();
+        waitUntilConnectedTo(2);
+        assertTrue(client.send(TespRequestAddEvent.withPayload("[1]")) instanceof TespResponseSuccess);
+        assertEquals(Collections.singletonList("[1]"), server.getAddedEvents());
+    }
+
+    @Test
+    public void decodesResponsesWrittenInPieces() throws Exception {
+        for (int partialWriteBytes : new int[] {1, 3, 7}) {
+            server.setPartialWriteBytes(partialWriteBytes);
+            final TespClient pieces = server.newClient();
+            try {
+                // The handshake answer has a payload
+                pieces.connect();
+                assertEquals(TespCodec.protocolVersion, pieces.getProtocolVersion());
+                for (int i = 0; i < 20; i++) {
+                    assertTrue(pieces.send(new TespRequestPing()) instanceof TespResponseSuccess);
+                    assertTrue(pieces.send(TespRequestAddEvent.withPayload("[]")) instanceof TespResponseSuccess);
+                }
+            } finally {
+                pieces.close();
+            }
+        }
+    }
+
+    private void waitUntilConnected() throws InterruptedException {
+        waitUntilConnectedTo(1);
+    }
+
+    private void waitUntilConnectedTo(int connectionCount) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!(client.isConnected() && server.getConnectionCount() >= connectionCount)) {
+            assertTrue("Not connected in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.net.tesp;
+
+import com.pacoapp.paco.net.tesp.message.request.TespRequest;
+import com.pacoapp.paco.net.tesp.message.request.TespRequestAddEvent;
+import com.pacoapp.paco.net.tesp.message.response.TespResponse;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TespMessageSocketTest {
+    @Test
+    public void failsAWriteBlockedPastTheDeadline() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             SocketChannel channel = SocketChannel.open(
+                     new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+             // Never reads, so the client's writes block once the socket buffers are full
+             Socket peer = serverSocket.accept()) {
+            final TespMessageSocket<TespResponse, TespRequest> tespSocket = new TespMessageSocket<>(channel, 60000);
+            final StringBuilder payload = new StringBuilder();
+            for (int i = 0; i < 1024 * 1024; i++) {
+                payload.append('x');
+            }
+            final long start = System.nanoTime();
+            tespSocket.setWriteDeadline(start + TimeUnit.MILLISECONDS.toNanos(200));
+            try {
+                for (int i = 0; i < 64; i++) {
+                    tespSocket.add(TespRequestAddEvent.withPayload(payload.toString()));
+                    tespSocket.flush();
+                }
+                fail("64 MB were written to a peer that doesn't read");
+            } catch (SocketTimeoutException expected) {
+                // Long before the 60s timeout
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            }
+            tespSocket.close();
+        }
+    }
+}
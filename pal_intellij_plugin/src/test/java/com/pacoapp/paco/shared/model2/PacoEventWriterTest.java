@@ -0,0 +1,175 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pacoapp.paco.shared.model2;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PacoEventWriterTest {
+  private static final ObjectMapper MAPPER = JsonConverter.getObjectMapper();
+  private static final String[] STRINGS = {null, "", "plain", "é \u0001\t\n\"\\/</script>", "😀 emoji", "日本"};
+
+  private static void assertWrittenLikeMapper(PacoEvent event) throws Exception {
+    String expected = MAPPER.writeValueAsString(event);
+    assertEquals(expected, PacoEventUtil.jsonify(event));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Writer out = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+    assertTrue(PacoEventUtil.writeJson(event, out));
+    out.flush();
+    assertEquals(expected, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private static PacoEvent ideEvent() {
+    PacoEvent event = PacoEventUtil.createEvent();
+    event.setExperimentId(123456789L);
+    event.setExperimentName("IntelliJ");
+    event.setExperimentVersion(3);
+    event.setWho("me");
+    event.setAppId("intellij");
+    event.setTimezone("Europe/Berlin");
+    List<Output> outputs = new ArrayList<>();
+    outputs.add(new Output("type", "IDE_ACTION"));
+    outputs.add(new Output("file", "/home/me/src/Foo.java"));
+    event.setWhat(outputs);
+    return event;
+  }
+
+  @Test
+  public void writesAnEmptyEvent() throws Exception {
+    assertWrittenLikeMapper(new PacoEvent());
+  }
+
+  @Test
+  public void writesATypicalEvent() throws Exception {
+    assertWrittenLikeMapper(ideEvent());
+  }
+
+  @Test
+  public void escapesStrings() throws Exception {
+    for (String string : STRINGS) {
+      PacoEvent event = ideEvent();
+      event.setWho(string);
+      event.setExperimentName(string);
+      event.getWhat().add(new Output(string, string));
+      assertWrittenLikeMapper(event);
+    }
+  }
+
+  @Test
+  public void writesNullOutputValues() throws Exception {
+    PacoEvent event = ideEvent();
+    event.getWhat().add(new Output("name", null));
+    event.getWhat().add(new Output(null, "value"));
+    event.getWhat().add(null);
+    assertWrittenLikeMapper(event);
+
+    event.setWhat(new ArrayList<Output>());
+    assertWrittenLikeMapper(event);
+  }
+
+  @Test
+  public void writesBlobs() throws Exception {
+    PacoEvent event = ideEvent();
+    event.setBlobs(new String[0]);
+    assertWrittenLikeMapper(event);
+    event.setBlobs(new String[] {"", "blob 😀", null});
+    assertWrittenLikeMapper(event);
+  }
+
+  @Test
+  public void writesZonedTimes() throws Exception {
+    PacoEvent event = ideEvent();
+    event.setResponseTime(new DateTime(1600000000000L, DateTimeZone.forOffsetHoursMinutes(5, 30)));
+    event.setScheduledTime(new DateTime(1500000000000L, DateTimeZone.forOffsetHours(-8)));
+    event.setWhen(new DateTime(1400000000000L, DateTimeZone.UTC));
+    event.setSortDate(new DateTime(1300000000000L, DateTimeZone.forOffsetHours(14)));
+    assertWrittenLikeMapper(event);
+  }
+
+  @Test
+  public void writesRandomEvents() throws Exception {
+    Random random = new Random(1);
+    for (int i = 0; i < 2000; i++) {
+      PacoEvent event = new PacoEvent();
+      if (random.nextBoolean()) {
+        event.setId(random.nextLong());
+      }
+      if (random.nextBoolean()) {
+        event.setExperimentId((long) random.nextInt());
+      }
+      event.setWho(randomString(random));
+      event.setAppId(randomString(random));
+      event.setPaco_version(randomString(random));
+      event.setExperimentName(randomString(random));
+      event.setTimezone(randomString(random));
+      event.setExperimentGroupName(randomString(random));
+      if (random.nextBoolean()) {
+        event.setExperimentVersion(random.nextInt());
+      }
+      if (random.nextBoolean()) {
+        event.setResponseTime(randomTime(random));
+      }
+      if (random.nextBoolean()) {
+        event.setScheduledTime(randomTime(random));
+      }
+      if (random.nextBoolean()) {
+        event.setWhen(randomTime(random));
+      }
+      if (random.nextBoolean()) {
+        event.setActionTriggerId(random.nextLong());
+        event.setActionTriggerSpecId(random.nextLong());
+        event.setActionId(random.nextLong());
+      }
+      if (random.nextBoolean()) {
+        event.setBlobs(new String[] {randomString(random), randomString(random)});
+      }
+      // Ignored by the mapper
+      event.setJoined(random.nextBoolean());
+      event.setShared(random.nextBoolean());
+      event.setLat("1");
+      if (random.nextInt(4) > 0) {
+        List<Output> outputs = new ArrayList<>();
+        for (int j = random.nextInt(8); j > 0; j--) {
+          outputs.add(new Output(randomString(random), randomString(random)));
+        }
+        event.setWhat(outputs);
+      }
+      assertWrittenLikeMapper(event);
+    }
+  }
+
+  private static String randomString(Random random) {
+    return STRINGS[random.nextInt(STRINGS.length)];
+  }
+
+  private static DateTime randomTime(Random random) {
+    return new DateTime(Math.abs(random.nextLong() % 4000000000000L),
+        DateTimeZone.forOffsetMillis((random.nextInt(48) - 24) * 1800000));
+  }
+}